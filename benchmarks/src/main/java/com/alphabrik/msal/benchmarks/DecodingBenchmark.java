@@ -0,0 +1,80 @@
+package com.alphabrik.msal.benchmarks;
+
+import com.alphabrik.msal.model.Message;
+import com.alphabrik.msal.model.MessagesDecoder;
+import com.alphabrik.msal.model.MessagesResponse;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message pages decoded the way {@code MailServer} used to (body as String, then bound to {@link MessagesResponse})
+ * against {@link MessagesDecoder} reading the body as a stream. Run with {@code -prof gc}: {@code gc.alloc.rate.norm}
+ * is the bytes allocated per page.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx1g"})
+@State(Scope.Benchmark)
+public class DecodingBenchmark {
+
+    // configured like MailServer
+    private static final ObjectMapper MAPPER = new ObjectMapper().registerModule(new JavaTimeModule())
+                                                                 .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    @Param({"1000", "10000"})
+    public int messages;
+
+    private byte[]          bytes;
+    private MessagesDecoder decoder;
+
+    @Setup
+    public void setup() {
+        bytes = Fixtures.messagesPage(messages).getBytes(StandardCharsets.UTF_8);
+        decoder = new MessagesDecoder(MAPPER.getFactory());
+    }
+
+    @Benchmark
+    public List<Message> stringThenBind() throws Exception {
+        return MAPPER.readValue(new String(bytes, StandardCharsets.UTF_8), MessagesResponse.class).value();
+    }
+
+    @Benchmark
+    public List<Message> bytesThenBind() throws Exception {
+        return MAPPER.readValue(bytes, MessagesResponse.class).value();
+    }
+
+    // what MailServer does for a page now
+    @Benchmark
+    public List<Message> decodeToList() throws Exception {
+        final var page = new ArrayList<Message>();
+        decoder.decode(new ByteArrayInputStream(bytes), page::add);
+        return page;
+    }
+
+    // a consumer that keeps nothing, like MailServer.forEachMessage
+    @Benchmark
+    public void decodeToConsumer(final Blackhole blackhole) throws Exception {
+        decoder.decode(new ByteArrayInputStream(bytes), blackhole::consume);
+    }
+}
@@ -0,0 +1,76 @@
+package com.alphabrik.msal.benchmarks;
+
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Graph-shaped response bodies, generated with a fixed seed so every run parses the same bytes.
+ * Field names, id lengths and annotations follow what Graph returns for the requests {@code MailServer} sends.
+ */
+final class Fixtures {
+
+    private static final String CONTEXT = "https://graph.microsoft.com/v1.0/$metadata#users('me%40example.com')/messages";
+
+    private Fixtures() {
+    }
+
+    /**
+     * A page of {@code count} messages as returned for {@code $select=subject,from,isRead,sentDateTime,receivedDateTime,hasAttachments}.
+     */
+    static String messagesPage(final int count) {
+        final var random = new Random(42);
+        final var json   = new StringBuilder(count * 600);
+        json.append("{\"@odata.context\":\"").append(CONTEXT).append("(subject,from,isRead,sentDateTime,receivedDateTime,hasAttachments)\",")
+            .append("\"@odata.nextLink\":\"https://graph.microsoft.com/v1.0/users/me@example.com/messages?%24select=subject&%24top=")
+            .append(count).append("&%24skip=").append(count).append("\",")
+            .append("\"value\":[");
+        var received = Instant.parse("2023-06-01T00:00:00Z");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            received = received.minusSeconds(60 + random.nextInt(3600));
+            // a mailbox has a few hundred senders, each always with the same name
+            final var sender = random.nextInt(200);
+            json.append("{\"@odata.etag\":\"W/\\\"").append(id(random, 40)).append("\\\"\",")
+                .append("\"id\":\"").append(id(random, 152)).append("\",")
+                .append("\"subject\":\"Quarterly report ").append(i).append(" - please review the attached figures before Friday\",")
+                .append("\"from\":{\"emailAddress\":{\"name\":\"Sender ").append(sender).append("\",\"address\":\"sender").append(sender).append("@example.com\"}},")
+                .append("\"isRead\":").append(random.nextBoolean()).append(',')
+                .append("\"sentDateTime\":\"").append(received.minusSeconds(5)).append("\",")
+                .append("\"receivedDateTime\":\"").append(received).append("\",")
+                .append("\"hasAttachments\":").append(random.nextInt(4) == 0)
+                .append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * An attachments response with one file attachment of {@code size} random bytes, base64 encoded in {@code contentBytes}.
+     */
+    static String attachments(final int size) {
+        final var random  = new Random(7);
+        final var content = new byte[size];
+        random.nextBytes(content);
+        return "{\"@odata.context\":\"" + CONTEXT + "('" + id(random, 152) + "')/attachments\",\"value\":[{" +
+               "\"@odata.type\":\"#microsoft.graph.fileAttachment\"," +
+               "\"@odata.mediaContentType\":\"application/pdf\"," +
+               "\"id\":\"" + id(random, 200) + "\"," +
+               "\"lastModifiedDateTime\":\"2023-06-01T10:15:30Z\"," +
+               "\"name\":\"report.pdf\"," +
+               "\"contentType\":\"application/pdf\"," +
+               "\"size\":" + size + "," +
+               "\"isInline\":false," +
+               "\"contentId\":null," +
+               "\"contentLocation\":null," +
+               "\"contentBytes\":\"" + Base64.getEncoder().encodeToString(content) + "\"}]}";
+    }
+
+    // Graph ids are url-safe base64 of a binary entry id
+    private static String id(final Random random, final int length) {
+        final var bytes = new byte[length * 3 / 4];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes).substring(0, length);
+    }
+}
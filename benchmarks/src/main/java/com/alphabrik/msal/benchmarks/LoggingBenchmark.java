@@ -0,0 +1,54 @@
+package com.alphabrik.msal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@code LOG.debug("Received: {}", responseBody)} on message pages. The bundled
+ * {@code simplelogger.properties} enables debug for {@code com.alphabrik}, so the default forks write the body
+ * (to /dev/null); the {@code Disabled} variant runs with the level raised to info.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LoggingBenchmark {
+
+    private static final Logger LOG = LoggerFactory.getLogger("com.alphabrik.msal.MailServer");
+
+    @Param({"100", "1000"})
+    public int messages;
+
+    public String body;
+
+    @Setup
+    public void setup() {
+        body = Fixtures.messagesPage(messages);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.logFile=/dev/null")
+    public void debugEnabled() {
+        LOG.debug("Received: {}", body);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.log.com.alphabrik=info")
+    public void debugDisabled() {
+        LOG.debug("Received: {}", body);
+    }
+}
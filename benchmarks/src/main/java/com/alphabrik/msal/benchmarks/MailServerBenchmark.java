@@ -0,0 +1,85 @@
+package com.alphabrik.msal.benchmarks;
+
+import com.alphabrik.msal.Configuration;
+import com.alphabrik.msal.MailServer;
+import com.alphabrik.msal.model.Attachment;
+import com.alphabrik.msal.stub.StubGraphServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole calls through {@code MailServer} against the in-process stub server over loopback HTTP. The numbers
+ * include the stub rendering its responses; compare runs of the same benchmark rather than absolute values.
+ * {@code responseCacheEntries=0} measures the full download and parse, 100 the ETag revalidation path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.log.com.alphabrik=info")
+public class MailServerBenchmark {
+
+    private static final int MESSAGES        = 1000;
+    private static final int ATTACHMENT_SIZE = 4 * 1024 * 1024;
+
+    @Param({"0", "100"})
+    public int responseCacheEntries;
+
+    private StubGraphServer stub;
+    private MailServer      server;
+    private String          messageWithAttachment;
+
+    @Setup
+    public void setup() throws Exception {
+        stub = new StubGraphServer(0).start();
+        for (int i = 0; i < MESSAGES; i++) {
+            stub.addMessage("sender" + (i % 200) + "@example.com", "Quarterly report " + i);
+        }
+        final var content = new byte[ATTACHMENT_SIZE];
+        new Random(7).nextBytes(content);
+        messageWithAttachment = stub.addMessage("sender@example.com", "Report");
+        stub.addAttachment(messageWithAttachment, "report.pdf", "application/pdf", content);
+
+        final var properties = "access_token=benchmark\n" +
+                               "account=me\n" +
+                               "baseUrl=" + stub.getBaseUrl() + "\n" +
+                               "maxRequestsPerSecond=100000\n" +
+                               "responseCacheEntries=" + responseCacheEntries + "\n";
+        server = new MailServer(new Configuration(new ByteArrayInputStream(properties.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+        stub.close();
+    }
+
+    @Benchmark
+    public long messagesPage() throws Exception {
+        try (final var messages = server.streamMessages("me", false, MESSAGES)) {
+            return messages.limit(MESSAGES).count();
+        }
+    }
+
+    @Benchmark
+    public List<Attachment> attachments() throws Exception {
+        return server.getAttachments("me", messageWithAttachment);
+    }
+}
@@ -0,0 +1,104 @@
+package com.alphabrik.msal.benchmarks;
+
+import com.alphabrik.msal.model.AttachmentsResponse;
+import com.alphabrik.msal.model.MessagesResponse;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jackson binding of response bodies to the model records, as {@code MailServer} does after {@code ofString()},
+ * compared with binding the raw bytes. Attachment parsing includes the base64 decoding of {@code contentBytes}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParsingBenchmark {
+
+    // configured like MailServer
+    private static final ObjectMapper MAPPER = new ObjectMapper().registerModule(new JavaTimeModule())
+                                                                 .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    @State(Scope.Benchmark)
+    public static class MessagesPage {
+
+        @Param({"100", "1000"})
+        public int messages;
+
+        public String json;
+        public byte[] bytes;
+
+        @Setup
+        public void setup() {
+            json = Fixtures.messagesPage(messages);
+            bytes = json.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Attachments {
+
+        @Param({"1048576", "8388608"})
+        public int size;
+
+        public String json;
+        public byte[] bytes;
+        public String base64;
+
+        @Setup
+        public void setup() throws Exception {
+            json = Fixtures.attachments(size);
+            bytes = json.getBytes(StandardCharsets.UTF_8);
+            base64 = MAPPER.readTree(json).path("value").path(0).path("contentBytes").asText();
+        }
+    }
+
+    @Benchmark
+    public MessagesResponse messagesFromString(final MessagesPage page) throws Exception {
+        return MAPPER.readValue(page.json, MessagesResponse.class);
+    }
+
+    @Benchmark
+    public MessagesResponse messagesFromBytes(final MessagesPage page) throws Exception {
+        return MAPPER.readValue(page.bytes, MessagesResponse.class);
+    }
+
+    // what ofString() adds on top of parsing: decoding the body into a String first
+    @Benchmark
+    public MessagesResponse messagesDecodeThenParse(final MessagesPage page) throws Exception {
+        return MAPPER.readValue(new String(page.bytes, StandardCharsets.UTF_8), MessagesResponse.class);
+    }
+
+    @Benchmark
+    public AttachmentsResponse attachmentsFromString(final Attachments attachments) throws Exception {
+        return MAPPER.readValue(attachments.json, AttachmentsResponse.class);
+    }
+
+    @Benchmark
+    public AttachmentsResponse attachmentsFromBytes(final Attachments attachments) throws Exception {
+        return MAPPER.readValue(attachments.bytes, AttachmentsResponse.class);
+    }
+
+    // lower bound for attachments: the base64 decoding alone
+    @Benchmark
+    public byte[] base64Decode(final Attachments attachments) {
+        return Base64.getDecoder().decode(attachments.base64);
+    }
+}
@@ -0,0 +1,64 @@
+package com.alphabrik.msal.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call request construction: {@code String.format} URI and header building as in {@code MailServer},
+ * against plain concatenation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBuildingBenchmark {
+
+    public String baseUrl   = "https://graph.microsoft.com/v1.0";
+    public String account   = "someone@example.com";
+    public String messageId = "AAMkAGI2THVSAAA=AAMkAGI2THVSAAA=AAMkAGI2THVSAAA=AAMkAGI2THVSAAA=AAMkAGI2THVSAAA=AAMkAGI2THVSAAA=AAMkAGI2TH";
+    public String token     = "eyJ0eXAiOiJKV1QiLCJhbGciOiJSUzI1NiJ9." + "x".repeat(1400);
+
+    @Benchmark
+    public URI uriFormat() throws Exception {
+        return new URI(String.format("%s/users/%s/messages/%s/attachments", baseUrl, account, messageId));
+    }
+
+    @Benchmark
+    public URI uriConcat() throws Exception {
+        return new URI(baseUrl + "/users/" + account + "/messages/" + messageId + "/attachments");
+    }
+
+    @Benchmark
+    public String authorizationFormat() {
+        return String.format("Bearer %s", token);
+    }
+
+    @Benchmark
+    public String authorizationConcat() {
+        return "Bearer " + token;
+    }
+
+    // the full builder chain of a GET in MailServer
+    @Benchmark
+    public HttpRequest request() throws Exception {
+        return HttpRequest.newBuilder()
+                          .GET()
+                          .header("Authorization", String.format("Bearer %s", token))
+                          .header("Accept", "application/json")
+                          .uri(new URI(String.format("%s/users/%s/messages/%s/attachments", baseUrl, account, messageId)))
+                          .build();
+    }
+}
@@ -0,0 +1,122 @@
+package com.alphabrik.msal.benchmarks;
+
+import com.alphabrik.msal.model.Message;
+import com.alphabrik.msal.model.MessagesResponse;
+import com.alphabrik.msal.rules.Rule;
+import com.alphabrik.msal.rules.RuleAction;
+import com.alphabrik.msal.rules.RuleEngine;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rule evaluation over 100k messages, reported per message. {@code compiled} is {@link RuleEngine#evaluate},
+ * {@code interpreted} checks the same conditions the way a hand-written loop over the raw settings would,
+ * splitting sender lists and compiling the subject pattern for every message.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RuleEngineBenchmark {
+
+    private static final int MESSAGES = 100_000;
+
+    // configured like MailServer
+    private static final ObjectMapper MAPPER = new ObjectMapper().registerModule(new JavaTimeModule())
+                                                                 .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private record Setting(String name, Map<String, String> conditions, Set<RuleAction> actions) {
+
+    }
+
+    // newsletters and reports match about 1% each, cleanup about half of the rest, most messages reach the last rule
+    private static final List<Setting> SETTINGS = List.of(
+        new Setting("newsletters", Map.of("sender", "@news.example.com, sender1@example.com, sender2@example.com"), Set.of(RuleAction.MARK_READ)),
+        new Setting("reports", Map.of("subject", "quarterly report \\d*55 ", "hasAttachments", "true"), Set.of(RuleAction.EXTRACT_ATTACHMENTS, RuleAction.MARK_READ)),
+        new Setting("cleanup", Map.of("isRead", "true", "olderThan", "P365D"), Set.of(RuleAction.DELETE)),
+        new Setting("vip", Map.of("sender", "sender7@example.com", "subject", "urgent"), Set.of(RuleAction.MARK_UNREAD))
+    );
+
+    private List<Message> messages;
+    private RuleEngine    engine;
+
+    @Setup
+    public void setup() throws Exception {
+        messages = MAPPER.readValue(Fixtures.messagesPage(MESSAGES), MessagesResponse.class).value();
+        final var rules = new ArrayList<Rule>();
+        for (final var setting : SETTINGS) {
+            rules.add(Rule.compile(setting.name(), setting.conditions(), setting.actions()));
+        }
+        engine = new RuleEngine(rules);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public RuleEngine.Matches compiled() {
+        return engine.evaluate(messages.iterator());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public int interpreted() {
+        int matched = 0;
+        for (final var message : messages) {
+            for (final var setting : SETTINGS) {
+                if (matches(setting.conditions(), message)) {
+                    matched++;
+                    break;
+                }
+            }
+        }
+        return matched;
+    }
+
+    private static boolean matches(final Map<String, String> conditions, final Message message) {
+        for (final var condition : conditions.entrySet()) {
+            final var value = condition.getValue();
+            final var match = switch (condition.getKey()) {
+                case "sender" -> {
+                    var found = false;
+                    for (final var sender : value.split(",")) {
+                        final var trimmed = sender.trim();
+                        found |= trimmed.startsWith("@")
+                                 ? message.senderAddress().toLowerCase().endsWith(trimmed.toLowerCase())
+                                 : message.senderAddress().equalsIgnoreCase(trimmed);
+                    }
+                    yield found;
+                }
+                case "subject" -> message.subject().toLowerCase().matches("(?s).*" + value + ".*");
+                case "hasAttachments" -> message.hasAttachments() == Boolean.parseBoolean(value);
+                case "isRead" -> message.isRead() == Boolean.parseBoolean(value);
+                case "olderThan" -> message.receivedDateTime().isBefore(Instant.now().minus(Duration.parse(value)));
+                default -> throw new IllegalArgumentException(condition.getKey());
+            };
+            if (!match) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
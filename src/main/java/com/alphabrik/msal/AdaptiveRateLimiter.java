@@ -0,0 +1,50 @@
+package com.alphabrik.msal;
+
+/**
+ * Paces requests to one mailbox. The rate halves whenever Graph throttles and recovers additively with every
+ * success (AIMD), so it settles just below the limit Graph is willing to serve at the moment.
+ */
+class AdaptiveRateLimiter {
+
+    private static final double MIN_RATE = 0.5;
+    private static final double INCREASE = 0.5;
+
+    private final double maxRate;
+
+    private double rate;
+    private long   nextFreeNanos = System.nanoTime();
+
+    AdaptiveRateLimiter(final double maxRate) {
+        if (maxRate < MIN_RATE) {
+            throw new IllegalArgumentException("maxRate must be at least " + MIN_RATE + ": " + maxRate);
+        }
+        this.maxRate = maxRate;
+        this.rate = maxRate;
+    }
+
+    /**
+     * Reserves the next slot and returns how long the caller has to wait for it, in milliseconds.
+     */
+    synchronized long reserve() {
+        final var now  = System.nanoTime();
+        final var slot = Math.max(now, nextFreeNanos);
+        nextFreeNanos = slot + (long) (1_000_000_000L / rate);
+        return (slot - now) / 1_000_000;
+    }
+
+    synchronized void onSuccess() {
+        rate = Math.min(maxRate, rate + INCREASE);
+    }
+
+    /**
+     * Halves the rate and, if Graph asked for a pause, holds back all requests to the mailbox until it is over.
+     */
+    synchronized void onThrottled(final long pauseMillis) {
+        rate = Math.max(MIN_RATE, rate / 2);
+        nextFreeNanos = Math.max(nextFreeNanos, System.nanoTime() + pauseMillis * 1_000_000);
+    }
+
+    synchronized double rate() {
+        return rate;
+    }
+}
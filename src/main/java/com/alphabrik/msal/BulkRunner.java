@@ -0,0 +1,113 @@
+package com.alphabrik.msal;
+
+import com.alphabrik.msal.model.BulkSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs one asynchronous {@link MailServer} operation per id with at most {@code concurrency} operations pending.
+ * No thread is held per pending operation, so the cap only bounds memory and fairness; the per-mailbox in-flight
+ * and rate limits of {@link MailServer} still apply below it.
+ */
+public class BulkRunner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkRunner.class);
+
+    private static final long PROGRESS_EVERY = 10_000;
+
+    @FunctionalInterface
+    public interface Operation {
+
+        CompletableFuture<?> apply(String id) throws Exception;
+    }
+
+    private final int concurrency;
+
+    public BulkRunner(final int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+        }
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Applies {@code operation} to every id and waits until all are done. A failing id does not stop the others.
+     */
+    public BulkSummary run(final Iterator<String> ids, final Operation operation) throws InterruptedException {
+        final var permits   = new Semaphore(concurrency);
+        final var latencies = new Latencies();
+        final var failed    = new LongAdder();
+        final var start     = System.nanoTime();
+        long      submitted = 0;
+
+        while (ids.hasNext()) {
+            final var id = ids.next();
+            permits.acquire();
+            final var begin = System.nanoTime();
+            CompletableFuture<?> future;
+            try {
+                future = operation.apply(id);
+            } catch (final Exception e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            future.whenComplete((result, error) -> {
+                latencies.add(System.nanoTime() - begin);
+                if (error != null) {
+                    failed.increment();
+                    LOG.warn("{} failed: {}", id, error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                }
+                permits.release();
+            });
+            if (++submitted % PROGRESS_EVERY == 0) {
+                LOG.info("{} submitted, {} failed", submitted, failed.sum());
+            }
+        }
+        // all permits back means all operations completed
+        permits.acquire(concurrency);
+        final var elapsed = Duration.ofNanos(System.nanoTime() - start);
+        return latencies.summary(failed.sum(), elapsed);
+    }
+
+    private static final class Latencies {
+
+        private long[] nanos = new long[1024];
+        private int    size;
+
+        synchronized void add(final long latency) {
+            if (size == nanos.length) {
+                nanos = Arrays.copyOf(nanos, size * 2);
+            }
+            nanos[size++] = latency;
+        }
+
+        synchronized BulkSummary summary(final long failed, final Duration elapsed) {
+            final var sorted = Arrays.copyOf(nanos, size);
+            Arrays.sort(sorted);
+            return new BulkSummary(
+                size,
+                failed,
+                elapsed,
+                percentile(sorted, 0.50),
+                percentile(sorted, 0.90),
+                percentile(sorted, 0.99),
+                percentile(sorted, 1)
+            );
+        }
+
+        private static Duration percentile(final long[] sorted, final double percentile) {
+            if (sorted.length == 0) {
+                return Duration.ZERO;
+            }
+            final var index = (int) Math.ceil(percentile * sorted.length) - 1;
+            return Duration.ofNanos(sorted[Math.max(0, index)]);
+        }
+    }
+}
@@ -4,6 +4,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 import java.util.function.Supplier;
 
@@ -33,6 +36,14 @@ public class Configuration {
         }
     }
 
+    private String getOrNull(final String property) {
+        return System.getenv().containsKey(property) ? System.getenv(property) : props.getProperty(property);
+    }
+
+    public boolean isSet(final String property) {
+        return System.getenv().containsKey(property) || props.containsKey(property);
+    }
+
     public String getOrThrow(final String property) throws Exception {
         return getOrThrow(property, () -> new IllegalArgumentException(property + " is not set!"));
     }
@@ -65,7 +76,60 @@ public class Configuration {
         return getOrThrow("baseUrl");
     }
 
-    public void setAccessToken(final String token) {
-        props.setProperty("access_token", token);
+    public int getMaxInFlight() {
+        return isSet("maxInFlight") ? Integer.parseInt(getOrNull("maxInFlight")) : 4;
+    }
+
+    public double getMaxRequestsPerSecond() {
+        // Graph allows 10000 requests per 10 minutes per mailbox
+        return isSet("maxRequestsPerSecond") ? Double.parseDouble(getOrNull("maxRequestsPerSecond")) : 16;
+    }
+
+    public int getMaxRetries() {
+        return isSet("maxRetries") ? Integer.parseInt(getOrNull("maxRetries")) : 5;
+    }
+
+    public Path getAttachmentCacheDir() {
+        return isSet("attachmentCacheDir") ? Path.of(getOrNull("attachmentCacheDir")) : null;
+    }
+
+    public Path getTokenCacheDir() {
+        return isSet("tokenCacheDir") ? Path.of(getOrNull("tokenCacheDir")) : null;
+    }
+
+    public long getAttachmentCacheMaxBytes() {
+        return isSet("attachmentCacheMaxBytes") ? Long.parseLong(getOrNull("attachmentCacheMaxBytes")) : 1L << 30;
+    }
+
+    public int getResponseCacheEntries() {
+        return isSet("responseCacheEntries") ? Integer.parseInt(getOrNull("responseCacheEntries")) : 100;
+    }
+
+    public int getScanWorkers() {
+        return isSet("scanWorkers") ? Integer.parseInt(getOrNull("scanWorkers")) : Runtime.getRuntime().availableProcessors();
+    }
+
+    public int getScanBytesInFlight() {
+        return isSet("scanBytesInFlight") ? Integer.parseInt(getOrNull("scanBytesInFlight")) : 64 << 20;
+    }
+
+    public String getNotificationUrl() throws Exception {
+        return getOrThrow("notificationUrl");
+    }
+
+    public int getNotificationPort() {
+        return isSet("notificationPort") ? Integer.parseInt(getOrNull("notificationPort")) : 8090;
+    }
+
+    public List<String> getRules() {
+        return isSet("rules") ? Arrays.stream(getOrNull("rules").split(",")).map(String::trim).filter(name -> !name.isEmpty()).toList() : List.of();
+    }
+
+    public Integer getMetricsPort() {
+        return isSet("metricsPort") ? Integer.valueOf(getOrNull("metricsPort")) : null;
+    }
+
+    public boolean isMetricsJmx() {
+        return Boolean.parseBoolean(getOrNull("metricsJmx"));
     }
 }
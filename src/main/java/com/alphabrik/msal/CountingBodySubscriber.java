@@ -0,0 +1,53 @@
+package com.alphabrik.msal;
+
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.function.LongConsumer;
+
+/**
+ * Passes a response body through to {@code delegate} and reports its size once it is complete.
+ */
+class CountingBodySubscriber<T> implements HttpResponse.BodySubscriber<T> {
+
+    private final HttpResponse.BodySubscriber<T> delegate;
+    private final LongConsumer                   onComplete;
+    private       long                           bytes;
+
+    CountingBodySubscriber(final HttpResponse.BodySubscriber<T> delegate, final LongConsumer onComplete) {
+        this.delegate = delegate;
+        this.onComplete = onComplete;
+    }
+
+    @Override
+    public CompletionStage<T> getBody() {
+        return delegate.getBody();
+    }
+
+    @Override
+    public void onSubscribe(final Flow.Subscription subscription) {
+        delegate.onSubscribe(subscription);
+    }
+
+    @Override
+    public void onNext(final List<ByteBuffer> buffers) {
+        for (final var buffer : buffers) {
+            bytes += buffer.remaining();
+        }
+        delegate.onNext(buffers);
+    }
+
+    @Override
+    public void onError(final Throwable throwable) {
+        onComplete.accept(bytes);
+        delegate.onError(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        onComplete.accept(bytes);
+        delegate.onComplete();
+    }
+}
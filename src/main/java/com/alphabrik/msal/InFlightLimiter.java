@@ -0,0 +1,74 @@
+package com.alphabrik.msal;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Caps the number of concurrently running asynchronous requests without blocking the caller:
+ * requests above the limit are queued and started as soon as a running one completes.
+ */
+class InFlightLimiter {
+
+    private final int             limit;
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+    private       int             inFlight;
+
+    InFlightLimiter(final int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+        this.limit = limit;
+    }
+
+    <T> CompletableFuture<T> submit(final Supplier<CompletableFuture<T>> task) {
+        final var result = new CompletableFuture<T>();
+        final Runnable start = () -> {
+            try {
+                task.get().whenComplete((value, e) -> {
+                    release();
+                    if (e != null) {
+                        result.completeExceptionally(e);
+                    } else {
+                        result.complete(value);
+                    }
+                });
+            } catch (final RuntimeException e) {
+                release();
+                result.completeExceptionally(e);
+            }
+        };
+
+        final boolean runNow;
+        synchronized (this) {
+            runNow = inFlight < limit;
+            if (runNow) {
+                inFlight++;
+            } else {
+                waiting.add(start);
+            }
+        }
+        if (runNow) {
+            start.run();
+        }
+        return result;
+    }
+
+    synchronized int inFlight() {
+        return inFlight;
+    }
+
+    private void release() {
+        final Runnable next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                inFlight--;
+            }
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+}
@@ -1,13 +1,32 @@
 package com.alphabrik.msal;
 
+import com.alphabrik.msal.extract.AttachmentScanner;
+import com.alphabrik.msal.extract.Extractor;
+import com.alphabrik.msal.metrics.MailMetrics;
+import com.alphabrik.msal.metrics.MetricsRegistry;
+import com.alphabrik.msal.metrics.PrometheusExporter;
 import com.alphabrik.msal.model.Attachment;
 import com.alphabrik.msal.model.Message;
+import com.alphabrik.msal.model.MessagePreview;
+import com.alphabrik.msal.model.MessageState;
+import com.alphabrik.msal.rules.RuleEngine;
+import com.alphabrik.msal.store.MessageStore;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 class MailExample {
 
@@ -20,17 +39,40 @@ class MailExample {
 
         final var config = new Configuration(MailExample.class.getResourceAsStream("/application.properties"));
 
-        final var server = new MailServer(config);
-        if (!server.connect()) {
-            LOG.error("Can not connect to mail server!");
-            System.exit(-1);
+        final var metrics  = config.getMetricsPort() != null || config.isMetricsJmx() ? new MetricsRegistry() : null;
+        final var exporter = metrics != null && config.getMetricsPort() != null
+                             ? new PrometheusExporter(metrics).serve(new InetSocketAddress(config.getMetricsPort()))
+                             : null;
+        if (metrics != null && config.isMetricsJmx()) {
+            metrics.registerMBeans();
         }
 
-        if (args.length == 0) {
-            LOG.info("No command, exiting.");
-            System.exit(0);
+        // closing the server writes the attachment cache and stops its threads
+        try (final var server = new MailServer(config, metrics != null ? metrics : MailMetrics.NOOP)) {
+            // a preset access_token (e.g. for the stub server) skips the AAD round-trip, local queries need none
+            final var offline = args.length > 0 && "indexQuery".equals(args[0]);
+            if (!offline && !config.isSet("access_token") && !server.connect()) {
+                LOG.error("Can not connect to mail server!");
+                System.exit(-1);
+            }
+
+            if (args.length == 0) {
+                LOG.info("No command, exiting.");
+                System.exit(0);
+            }
+
+            run(args, config, server);
+        } finally {
+            if (metrics != null) {
+                logMetrics(metrics);
+            }
+            if (exporter != null) {
+                exporter.close();
+            }
         }
+    }
 
+    private static void run(final String[] args, final Configuration config, final MailServer server) throws Exception {
         final var scanner = new Scanner(System.in);
         switch (args[0]) {
             case "getAttachments" -> {
@@ -54,6 +96,28 @@ class MailExample {
                     LOG.info("No attachments found!");
                 }
             }
+            case "listAttachments" -> {
+                if (args.length != 2) {
+                    LOG.warn("Usage: listAttachments <id>");
+                    System.exit(-1);
+                }
+                server.listAttachments(args[1]).forEach(attachment -> LOG.info("{}", attachment));
+            }
+            case "downloadAttachment" -> {
+                if (args.length != 4) {
+                    LOG.warn("Usage: downloadAttachment <messageId> <attachmentId> <file>");
+                    System.exit(-1);
+                }
+                LOG.info("Saved to {}", server.downloadAttachment(args[1], args[2], Path.of(args[3])));
+            }
+            case "saveAttachments" -> {
+                if (args.length != 3) {
+                    LOG.warn("Usage: saveAttachments <id> <directory>");
+                    System.exit(-1);
+                }
+                final var attachments = server.saveAttachments(args[1], Path.of(args[2]));
+                LOG.info("Saved {} attachments to {}", attachments.size(), args[2]);
+            }
             case "getMessages" -> {
                 boolean read;
                 if (args.length != 2) {
@@ -75,6 +139,188 @@ class MailExample {
                     LOG.info("No messages found!");
                 }
             }
+            case "streamMessages" -> {
+                if (args.length < 2) {
+                    LOG.warn("Usage: streamMessages <unreadOnly> [pageSize]");
+                    System.exit(-1);
+                }
+                final var unreadOnly = Boolean.parseBoolean(args[1]);
+                final var pageSize   = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+                try (final var messages = server.streamMessages(unreadOnly, pageSize)) {
+                    final var count = messages.peek(message -> LOG.info("{}", message))
+                                              .count();
+                    LOG.info("{} messages found", count);
+                }
+            }
+            case "query" -> {
+                if (args.length < 2) {
+                    LOG.warn("Usage: query <fields | preview> [filter | search:<terms>] [orderBy]");
+                    System.exit(-1);
+                }
+                final var preview = "preview".equals(args[1]);
+                var       query   = (preview ? MessageQuery.of(MessagePreview.class) : MessageQuery.select(args[1])).top(100);
+                if (args.length > 2) {
+                    query = args[2].startsWith("search:") ? query.search(args[2].substring("search:".length())) : query.filter(args[2]);
+                }
+                if (args.length > 3) {
+                    query = query.orderBy(args[3]);
+                }
+                final var count = preview
+                                  ? server.forEachMessage(query, MessagePreview.class, message -> LOG.info("{}", message))
+                                  : server.forEachMessage(query, ObjectNode.class, message -> LOG.info("{}", message));
+                LOG.info("{} messages found", count);
+            }
+            case "sync" -> {
+                if (args.length < 2) {
+                    LOG.warn("Usage: sync <deltaTokenFile> [folder]");
+                    System.exit(-1);
+                }
+                final var folder  = args.length > 2 ? args[2] : "inbox";
+                final var changes = server.syncMessages(folder, Path.of(args[1]));
+                LOG.info("{}", changes);
+                changes.changed().forEach(message -> LOG.info("changed: {}", message));
+                changes.removed().forEach(id -> LOG.info("removed: {}", id));
+                MailServer.saveDeltaLink(Path.of(args[1]), changes);
+            }
+            case "scan" -> {
+                if (args.length < 2) {
+                    LOG.warn("Usage: scan <accountsFile> [workers]");
+                    System.exit(-1);
+                }
+                final var accounts = Files.readAllLines(Path.of(args[1]))
+                                          .stream()
+                                          .map(String::trim)
+                                          .filter(account -> !account.isEmpty())
+                                          .toList();
+                final var mailboxScanner = args.length > 2
+                                           ? new MailboxScanner(server, Integer.parseInt(args[2]))
+                                           : new MailboxScanner(server);
+                mailboxScanner.scan(accounts, (mailServer, account) -> {
+                    try (final var messages = mailServer.streamMessages(account, unread(true), MessageState.class)) {
+                        LOG.info("{}: {} unread", account, messages.count());
+                    }
+                });
+            }
+            case "bulk" -> {
+                if (args.length < 3) {
+                    LOG.warn("Usage: bulk <getAttachments|read|unread|delete> <idFile | - | query:unread | query:all> [concurrency]");
+                    System.exit(-1);
+                }
+                final var account = config.getAccount();
+                final BulkRunner.Operation operation = switch (args[1]) {
+                    case "getAttachments" -> id -> server.getAttachmentsAsync(account, id);
+                    case "read" -> id -> server.toggleReadAsync(account, id, true);
+                    case "unread" -> id -> server.toggleReadAsync(account, id, false);
+                    case "delete" -> id -> server.deleteAsync(account, id);
+                    default -> throw new IllegalArgumentException("Unknown bulk operation " + args[1]);
+                };
+                // more pending operations than maxInFlight would only wait for a slot and count it as latency
+                final var concurrency = args.length > 3 ? Integer.parseInt(args[3]) : config.getMaxInFlight();
+                try (final var ids = bulkIds(server, account, args[2])) {
+                    final var summary = new BulkRunner(concurrency).run(ids.iterator(), operation);
+                    LOG.info("{} {}", args[1], summary);
+                    LOG.info("{}", server.getThrottlingStats());
+                }
+            }
+            case "scanAttachments" -> {
+                if (args.length < 3) {
+                    LOG.warn("Usage: scanAttachments <idFile | - | query:unread | query:all> <sha256 | regex:<pattern> | maxSize:<bytes> | type:<contentTypes>>...");
+                    System.exit(-1);
+                }
+                final var account           = config.getAccount();
+                final var extractors        = Extractor.parse(Arrays.asList(args).subList(2, args.length));
+                final var attachmentScanner = new AttachmentScanner(server, extractors, config.getScanWorkers(), config.getScanBytesInFlight());
+                try (final var ids = bulkIds(server, account, args[1])) {
+                    final var summary = attachmentScanner.scan(account, ids.iterator(), extraction -> LOG.info("{}", extraction));
+                    LOG.info("{}", summary);
+                    summary.extractors().forEach(extractor -> LOG.info("{}", extractor));
+                }
+            }
+            case "rules" -> {
+                if (args.length < 2) {
+                    LOG.warn("Usage: rules <apply|dryRun> [unreadOnly] [attachmentDirectory]");
+                    System.exit(-1);
+                }
+                final var account = config.getAccount();
+                final var engine  = RuleEngine.fromConfiguration(config);
+                LOG.info("Rules: {}", engine);
+                final RuleEngine.Matches matches;
+                try (final var messages = server.streamMessages(account, args.length > 2 && Boolean.parseBoolean(args[2]), 100)) {
+                    matches = engine.evaluate(messages.iterator());
+                }
+                LOG.info("{}", matches);
+                if ("apply".equals(args[1])) {
+                    final var failures = engine.apply(server, account, matches, args.length > 3 ? Path.of(args[3]) : null);
+                    failures.forEach(failure -> LOG.warn("Failed: {}", failure));
+                }
+            }
+            case "export" -> {
+                if (args.length < 4) {
+                    LOG.warn("Usage: export <directory> <from> <to> [shards] [ndjson|mime] [parallelism]");
+                    System.exit(-1);
+                }
+                final var exporter = new MailboxExporter(server, args.length > 6 ? Integer.parseInt(args[6]) : 4);
+                final var summary  = exporter.export(
+                    config.getAccount(),
+                    Instant.parse(args[2]),
+                    Instant.parse(args[3]),
+                    args.length > 4 ? Integer.parseInt(args[4]) : 16,
+                    args.length > 5 ? MailboxExporter.Format.valueOf(args[5].toUpperCase()) : MailboxExporter.Format.NDJSON,
+                    Path.of(args[1])
+                );
+                LOG.info("{}", summary);
+                LOG.info("{}", server.getThrottlingStats());
+            }
+            case "watch" -> {
+                final var accounts = args.length > 1 ? Arrays.asList(args).subList(1, args.length) : List.of(config.getAccount());
+                try (final var subscriptions = new SubscriptionManager(
+                    server,
+                    new InetSocketAddress(config.getNotificationPort()),
+                    config.getNotificationUrl(),
+                    new SubscriptionManager.MessageListener() {
+                        @Override
+                        public void onMessage(final String account, final Message message) {
+                            LOG.info("{}: {}", account, message);
+                        }
+
+                        @Override
+                        public void onDeleted(final String account, final String messageId) {
+                            LOG.info("{}: deleted {}", account, messageId);
+                        }
+                    }
+                )) {
+                    for (final var account : accounts) {
+                        subscriptions.subscribe(account);
+                    }
+                    System.out.println("Watching, press enter to stop");
+                    scanner.nextLine();
+                }
+            }
+            case "indexSync" -> {
+                if (args.length < 2) {
+                    LOG.warn("Usage: indexSync <directory> [folder]");
+                    System.exit(-1);
+                }
+                try (final var store = new MessageStore(Path.of(args[1]))) {
+                    store.sync(server, config.getAccount(), args.length > 2 ? args[2] : "inbox");
+                    LOG.info("{} messages, {} unread", store.size(), store.unreadCount());
+                }
+            }
+            case "indexQuery" -> {
+                if (args.length < 3) {
+                    LOG.warn("Usage: indexQuery <directory> <unread | sender <address> | received <from> <to>>");
+                    System.exit(-1);
+                }
+                try (final var store = new MessageStore(Path.of(args[1]))) {
+                    final var messages = switch (args[2]) {
+                        case "unread" -> store.unread(100);
+                        case "sender" -> store.fromSender(args[3], 100);
+                        case "received" -> store.receivedBetween(Instant.parse(args[3]), Instant.parse(args[4]), 100);
+                        default -> throw new IllegalArgumentException("Unknown query " + args[2]);
+                    };
+                    messages.forEach(message -> LOG.info("{}", message));
+                }
+            }
             case "toggleRead" -> {
                 String  id;
                 boolean read;
@@ -100,7 +346,47 @@ class MailExample {
                     server.delete(args[1]);
                 }
             }
-            default -> LOG.info("Unknown command! Available commands: getMessages, toggleRead, delete");
+            default -> LOG.info("Unknown command! Available commands: getAttachments, listAttachments, downloadAttachment, saveAttachments, getMessages, streamMessages, query, sync, scan, bulk, scanAttachments, rules, export, watch, indexSync, indexQuery, toggleRead, delete");
+        }
+    }
+
+    private static void logMetrics(final MetricsRegistry metrics) {
+        for (final var operation : metrics.all()) {
+            if (operation.getCount() > 0) {
+                LOG.info(
+                    "{}: count:{} errors:{} mean:{}ms p50:{}ms p99:{}ms max:{}ms bytes:{} parse:{}ms",
+                    operation.operation().value,
+                    operation.getCount(),
+                    operation.getErrors(),
+                    String.format("%.1f", operation.getMeanMillis()),
+                    operation.getP50Millis(),
+                    operation.getP99Millis(),
+                    String.format("%.1f", operation.getMaxMillis()),
+                    operation.getBytesReceived(),
+                    String.format("%.2f", operation.getParseMeanMillis())
+                );
+            }
+        }
+    }
+
+    // just the ids and read states, in pages of 100
+    private static MessageQuery unread(final boolean unreadOnly) {
+        return MessageQuery.of(MessageState.class)
+                           .filter(unreadOnly ? "isRead eq false" : null)
+                           .top(100);
+    }
+
+    private static Stream<String> bulkIds(final MailServer server, final String account, final String source) throws Exception {
+        if (source.startsWith("query:")) {
+            // collected up front, changing messages while paging through them would shift the pages
+            try (final var messages = server.streamMessages(account, unread("query:unread".equals(source)), MessageState.class)) {
+                return messages.map(MessageState::id).toList().stream();
+            }
         }
+        final var lines = "-".equals(source)
+                          ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)).lines()
+                          : Files.lines(Path.of(source));
+        return lines.map(String::trim)
+                    .filter(id -> !id.isEmpty());
     }
 }
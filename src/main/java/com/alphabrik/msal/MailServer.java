@@ -2,30 +2,89 @@ package com.alphabrik.msal;
 
 import com.alphabrik.msal.model.Attachment;
 import com.alphabrik.msal.model.AttachmentsResponse;
+import com.alphabrik.msal.model.BatchRequest;
+import com.alphabrik.msal.model.BatchResponse;
+import com.alphabrik.msal.model.BatchResult;
+import com.alphabrik.msal.model.CacheStats;
+import com.alphabrik.msal.model.DeltaResponse;
+import com.alphabrik.msal.model.MailboxChanges;
 import com.alphabrik.msal.model.Message;
-import com.alphabrik.msal.model.MessagesResponse;
+import com.alphabrik.msal.model.MessagesDecoder;
+import com.alphabrik.msal.model.Subscription;
+import com.alphabrik.msal.model.ThrottlingStats;
+import com.alphabrik.msal.metrics.MailMetrics;
+import com.alphabrik.msal.metrics.Operation;
+import com.alphabrik.msal.store.AttachmentCache;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.microsoft.aad.msal4j.ClientCredentialFactory;
-import com.microsoft.aad.msal4j.ClientCredentialParameters;
-import com.microsoft.aad.msal4j.ConfidentialClientApplication;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
-public class MailServer {
+public class MailServer implements AutoCloseable {
 
     private static final Logger LOG = LoggerFactory.getLogger(MailServer.class);
 
-    private static final HttpClient   HTTP_CLIENT = HttpClient.newBuilder()
-                                                              .build();
-    private static final ObjectMapper MAPPER      = new ObjectMapper();
+    // the one module needed, findAndRegisterModules would scan the classpath for modules on every start
+    private static final ObjectMapper MAPPER = new ObjectMapper().registerModule(new JavaTimeModule())
+                                                                 .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+                                                                 .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+
+    private static final String MESSAGE_FIELDS = "subject,from,isRead,sentDateTime,receivedDateTime,hasAttachments";
+
+    // Graph accepts at most 20 sub-requests per $batch
+    private static final int BATCH_SIZE = 20;
+
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS     = 60_000;
+
+    // a bit for each metadata field of an attachment, see readAttachments
+    private static final int ATTACHMENT_METADATA = 0b111111;
 
     private enum MimeTypes {
         APPLICATION_JSON("application/json");
@@ -40,7 +99,9 @@ public class MailServer {
     private enum Headers {
         CONTENT_TYPE("Content-Type"),
         AUTHORIZATION("Authorization"),
-        ACCEPT("Accept");
+        ACCEPT("Accept"),
+        IF_NONE_MATCH("If-None-Match"),
+        ETAG("ETag");
 
         public final String value;
 
@@ -49,32 +110,58 @@ public class MailServer {
         }
     }
 
-    private final Configuration config;
+    // created with the first request: building the client loads the TLS stack, most of a second at startup,
+    // which commands that stay offline do not need
+    private static final class Http {
+
+        static final HttpClient CLIENT = HttpClient.newBuilder()
+                                                   .build();
+    }
+
+    private record Mailbox(InFlightLimiter limiter, AdaptiveRateLimiter rate) {
+
+    }
+
+    private final Configuration        config;
+    private final TokenProvider        tokens;
+    private final int                  maxInFlight;
+    private final double               maxRequestsPerSecond;
+    private final int                  maxRetries;
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final AttachmentCache      attachmentCache;
+    private final ResponseCache        responseCache;
+    private final MailMetrics          metrics;
+    private final MessagesDecoder      messagesDecoder = new MessagesDecoder(MAPPER.getFactory());
+
+    private final LongAdder requests   = new LongAdder();
+    private final LongAdder successful = new LongAdder();
+    private final LongAdder throttled  = new LongAdder();
+    private final LongAdder retried    = new LongAdder();
+    private final LongAdder failed     = new LongAdder();
 
     public MailServer(final Configuration config) {
-        this.config = config;
+        this(config, MailMetrics.NOOP);
+    }
 
-        MAPPER.findAndRegisterModules();
-        MAPPER.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    public MailServer(final Configuration config, final MailMetrics metrics) {
+        this.config = config;
+        this.metrics = metrics;
+        this.tokens = new TokenProvider(config, metrics);
+        this.maxInFlight = config.getMaxInFlight();
+        this.maxRequestsPerSecond = config.getMaxRequestsPerSecond();
+        this.maxRetries = config.getMaxRetries();
+        this.responseCache = new ResponseCache(config.getResponseCacheEntries());
+        try {
+            final var cacheDir = config.getAttachmentCacheDir();
+            this.attachmentCache = cacheDir != null ? new AttachmentCache(cacheDir, config.getAttachmentCacheMaxBytes()) : null;
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Can not open attachment cache!", e);
+        }
     }
 
     public boolean connect() {
         try {
-            final var app = ConfidentialClientApplication.builder(
-                                                             config.getClientId(),
-                                                             ClientCredentialFactory.createFromSecret(config.getClientSecret())
-                                                         )
-                                                         .authority(String.format("%s/%s", config.getAuthority(), config.getTenant()))
-                                                         .build();
-
-            final var clientCredentialParam = ClientCredentialParameters.builder(
-                                                                            Collections.singleton("https://graph.microsoft.com/.default")
-                                                                        )
-                                                                        .build();
-            final var result = app.acquireToken(clientCredentialParam).get();
-            final var token  = result.accessToken();
-            LOG.debug("Token received: {}", token);
-            config.setAccessToken(token);
+            tokens.connect();
             return true;
         } catch (final Exception e) {
             LOG.warn("Can not connect to mail server", e);
@@ -82,84 +169,1316 @@ public class MailServer {
         }
     }
 
+    @Override
+    public void close() {
+        tokens.close();
+        if (attachmentCache != null) {
+            try {
+                attachmentCache.close();
+            } catch (final IOException e) {
+                LOG.warn("Can not write attachment cache index", e);
+            }
+        }
+    }
+
+    public ThrottlingStats getThrottlingStats() {
+        return new ThrottlingStats(requests.sum(), successful.sum(), throttled.sum(), retried.sum(), failed.sum());
+    }
+
+    /**
+     * Statistics of the attachment cache, empty if {@code attachmentCacheDir} is not configured.
+     */
+    public Optional<CacheStats> getAttachmentCacheStats() {
+        return Optional.ofNullable(attachmentCache).map(AttachmentCache::stats);
+    }
+
+    /**
+     * Current request rate limit of a mailbox in requests per second, lowered while Graph throttles it.
+     */
+    public double getRequestRate(final String account) {
+        final var mailbox = mailboxes.get(account);
+        return mailbox != null ? mailbox.rate().rate() : maxRequestsPerSecond;
+    }
+
     public void toggleRead(final String id, final boolean read) throws Exception {
+        toggleRead(config.getAccount(), id, read);
+    }
+
+    public void toggleRead(final String account, final String id, final boolean read) throws Exception {
+        await(toggleReadAsync(account, id, read));
+    }
+
+    public CompletableFuture<Void> toggleReadAsync(final String id, final boolean read) throws Exception {
+        return toggleReadAsync(config.getAccount(), id, read);
+    }
+
+    public CompletableFuture<Void> toggleReadAsync(final String account, final String id, final boolean read) throws Exception {
         final var request = HttpRequest.newBuilder()
                                        .method("PATCH", HttpRequest.BodyPublishers.ofString(String.format("{%s: %s}", "isRead", read)))
                                        .header(Headers.CONTENT_TYPE.value, MimeTypes.APPLICATION_JSON.value)
-                                       .header(Headers.AUTHORIZATION.value, String.format("Bearer %s", config.getToken()))
+                                       .header(Headers.AUTHORIZATION.value, String.format("Bearer %s", tokens.getToken()))
                                        .header(Headers.ACCEPT.value, MimeTypes.APPLICATION_JSON.value)
-                                       .uri(new URI(String.format("%s/users/%s/messages/%s", config.getBaseUrl(), config.getAccount(), id)))
+                                       .uri(new URI(String.format("%s/users/%s/messages/%s", config.getBaseUrl(), account, id)))
                                        .build();
-        final var response = HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
-        if (response.statusCode() < 200 || response.statusCode() >= 400) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Request failed: {} {}", response.statusCode(), response.body());
-            }
-            throw new RuntimeException("Can not toggle read! " + response.statusCode());
-        }
-        final var responseBody = response.body();
-        LOG.debug("Received: {}", responseBody);
+        return send(account, Operation.TOGGLE_READ, request, HttpResponse.BodyHandlers.ofString())
+            .thenAccept(response -> {
+                if (response.statusCode() < 200 || response.statusCode() >= 400) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Request failed: {} {}", response.statusCode(), response.body());
+                    }
+                    throw new RuntimeException("Can not toggle read! " + response.statusCode());
+                }
+                final var responseBody = response.body();
+                LOG.debug("Received: {}", responseBody);
+            })
+            .whenComplete((ignored, error) -> responseCache.invalidate(account, id));
     }
 
     public void delete(final String id) throws Exception {
+        delete(config.getAccount(), id);
+    }
+
+    public void delete(final String account, final String id) throws Exception {
+        await(deleteAsync(account, id));
+    }
+
+    public CompletableFuture<Void> deleteAsync(final String id) throws Exception {
+        return deleteAsync(config.getAccount(), id);
+    }
+
+    public CompletableFuture<Void> deleteAsync(final String account, final String id) throws Exception {
         final var request = HttpRequest.newBuilder()
                                        .DELETE()
-                                       .header(Headers.AUTHORIZATION.value, String.format("Bearer %s", config.getToken()))
-                                       .uri(new URI(String.format("%s/users/%s/messages/%s", config.getBaseUrl(), config.getAccount(), id)))
+                                       .header(Headers.AUTHORIZATION.value, String.format("Bearer %s", tokens.getToken()))
+                                       .uri(new URI(String.format("%s/users/%s/messages/%s", config.getBaseUrl(), account, id)))
                                        .build();
-        final var response = HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
-        if (response.statusCode() != 204) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Request failed: {} {}", response.statusCode(), response.body());
+        return send(account, Operation.DELETE, request, HttpResponse.BodyHandlers.ofString())
+            .thenAccept(response -> {
+                if (response.statusCode() != 204) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Request failed: {} {}", response.statusCode(), response.body());
+                    }
+                    throw new RuntimeException("Can not delete message " + id + "! " + response.statusCode());
+                }
+            })
+            .whenComplete((ignored, error) -> responseCache.invalidate(account, id));
+    }
+
+    public List<BatchResult> toggleRead(final Collection<String> ids, final boolean read) throws Exception {
+        return toggleRead(config.getAccount(), ids, read);
+    }
+
+    public List<BatchResult> toggleRead(final String account, final Collection<String> ids, final boolean read) throws Exception {
+        return batch(account, ids, id -> new BatchRequest.Item(
+            null,
+            "PATCH",
+            String.format("/users/%s/messages/%s", account, id),
+            Map.of(Headers.CONTENT_TYPE.value, MimeTypes.APPLICATION_JSON.value),
+            Map.of("isRead", read)
+        ));
+    }
+
+    public List<BatchResult> delete(final Collection<String> ids) throws Exception {
+        return delete(config.getAccount(), ids);
+    }
+
+    public List<BatchResult> delete(final String account, final Collection<String> ids) throws Exception {
+        return batch(account, ids, id -> new BatchRequest.Item(
+            null,
+            "DELETE",
+            String.format("/users/%s/messages/%s", account, id),
+            null,
+            null
+        ));
+    }
+
+    /**
+     * Sends one sub-request per id, packed into {@code $batch} requests of {@value #BATCH_SIZE} which are
+     * sent concurrently, up to the in-flight limit of the mailbox. Returns one result per id in the order of {@code ids}.
+     */
+    private List<BatchResult> batch(final String account, final Collection<String> ids, final Function<String, BatchRequest.Item> itemFactory) throws Exception {
+        final var uri     = new URI(String.format("%s/$batch", config.getBaseUrl()));
+
+        final var chunks  = new ArrayList<List<String>>();
+        var       current = new ArrayList<String>(BATCH_SIZE);
+        for (final var id : ids) {
+            if (current.size() == BATCH_SIZE) {
+                chunks.add(current);
+                current = new ArrayList<>(BATCH_SIZE);
+            }
+            current.add(id);
+        }
+        if (!current.isEmpty()) {
+            chunks.add(current);
+        }
+
+        final var futures = new ArrayList<CompletableFuture<List<BatchResult>>>(chunks.size());
+        for (final var chunk : chunks) {
+            futures.add(sendBatch(account, uri, chunk, itemFactory, 0));
+        }
+
+        final var results = new ArrayList<BatchResult>(ids.size());
+        for (final var future : futures) {
+            results.addAll(future.join());
+        }
+        return results;
+    }
+
+    /**
+     * Sends one {@code $batch} and sends the sub-requests Graph throttled again, see {@link #retryThrottled}.
+     * Never completes exceptionally, a failure is reported in the results.
+     */
+    private CompletableFuture<List<BatchResult>> sendBatch(
+        final String account,
+        final URI uri,
+        final List<String> ids,
+        final Function<String, BatchRequest.Item> itemFactory,
+        final int retry
+    ) {
+        final HttpRequest request;
+        try {
+            final var items = new ArrayList<BatchRequest.Item>(ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                final var item = itemFactory.apply(ids.get(i));
+                items.add(new BatchRequest.Item(String.valueOf(i), item.method(), item.url(), item.headers(), item.body()));
+            }
+            request = HttpRequest.newBuilder()
+                                 .POST(HttpRequest.BodyPublishers.ofByteArray(MAPPER.writeValueAsBytes(new BatchRequest(items))))
+                                 .header(Headers.CONTENT_TYPE.value, MimeTypes.APPLICATION_JSON.value)
+                                 .header(Headers.AUTHORIZATION.value, String.format("Bearer %s", tokens.getToken()))
+                                 .header(Headers.ACCEPT.value, MimeTypes.APPLICATION_JSON.value)
+                                 .uri(uri)
+                                 .build();
+        } catch (final Exception e) {
+            return CompletableFuture.completedFuture(failedResults(ids, 0, e.getMessage()));
+        }
+        return send(account, Operation.BATCH, request, HttpResponse.BodyHandlers.ofString())
+            .whenComplete((ignored, error) -> ids.forEach(id -> responseCache.invalidate(account, id)))
+            .thenCompose(response -> {
+                final var responseBody = response.body();
+                if (response.statusCode() < 200 || response.statusCode() >= 400) {
+                    LOG.warn("Batch request failed: {} {}", response.statusCode(), responseBody);
+                    return CompletableFuture.completedFuture(failedResults(ids, response.statusCode(), "Batch request failed"));
+                }
+                LOG.debug("Received: {}", responseBody);
+                return retryThrottled(account, uri, ids, itemFactory, retry, readValue(Operation.BATCH, responseBody, BatchResponse.class));
+            })
+            .exceptionally(e -> failedResults(ids, 0, e.getMessage()));
+    }
+
+    /**
+     * Graph throttles the sub-requests of a {@code $batch} one by one and does not process the throttled ones, which
+     * are PATCH and DELETE and can be repeated. Like throttled requests they are sent again, in a new {@code $batch},
+     * after the longest {@code Retry-After} or the backoff, at most {@code maxRetries} times, and are counted in the
+     * {@link ThrottlingStats}.
+     */
+    private CompletableFuture<List<BatchResult>> retryThrottled(
+        final String account,
+        final URI uri,
+        final List<String> ids,
+        final Function<String, BatchRequest.Item> itemFactory,
+        final int retry,
+        final BatchResponse batchResponse
+    ) {
+        final var results      = batchResults(ids, batchResponse);
+        final var throttledIds = new ArrayList<String>();
+        long      retryAfter   = -1;
+        for (final var item : batchResponse.responses()) {
+            if (item.status() == 429 || item.status() == 503 || item.status() == 504) {
+                throttledIds.add(ids.get(Integer.parseInt(item.id())));
+                retryAfter = Math.max(retryAfter, retryAfter(item).orElse(-1L));
+            }
+        }
+        if (throttledIds.isEmpty()) {
+            return CompletableFuture.completedFuture(results);
+        }
+        throttled.add(throttledIds.size());
+        if (retry >= maxRetries) {
+            failed.add(throttledIds.size());
+            return CompletableFuture.completedFuture(results);
+        }
+        retried.add(throttledIds.size());
+        final var pause = retryAfter >= 0 ? retryAfter : backoff(retry);
+        mailbox(account).rate().onThrottled(pause);
+        LOG.debug("Retrying {} throttled batch requests in {} ms", throttledIds.size(), pause);
+        return delay(pause)
+            .thenCompose(ignored -> sendBatch(account, uri, throttledIds, itemFactory, retry + 1))
+            .thenApply(retriedResults -> {
+                final var byId = new HashMap<String, BatchResult>();
+                retriedResults.forEach(result -> byId.put(result.messageId(), result));
+                return results.stream()
+                              .map(result -> byId.getOrDefault(result.messageId(), result))
+                              .toList();
+            });
+    }
+
+    private static List<BatchResult> failedResults(final List<String> ids, final int status, final String error) {
+        return ids.stream()
+                  .map(id -> new BatchResult(id, status, error))
+                  .toList();
+    }
+
+    private List<BatchResult> batchResults(final List<String> ids, final BatchResponse batchResponse) {
+        final var results = new BatchResult[ids.size()];
+        for (final var item : batchResponse.responses()) {
+            final var index = Integer.parseInt(item.id());
+            final var error = item.body() != null && item.body().has("error")
+                              ? item.body().path("error").path("message").asText()
+                              : null;
+            results[index] = new BatchResult(ids.get(index), item.status(), error);
+        }
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                results[i] = new BatchResult(ids.get(i), 0, "No response in batch");
             }
-            throw new RuntimeException("Can not delete message " + id + "! " + response.statusCode());
         }
+        return List.of(results);
     }
 
     public List<Attachment> getAttachments(final String id) throws Exception {
-        final var request = HttpRequest.newBuilder()
+        return getAttachments(config.getAccount(), id);
+    }
+
+    public List<Attachment> getAttachments(final String account, final String id) throws Exception {
+        return await(getAttachmentsAsync(account, id));
+    }
+
+    public CompletableFuture<List<Attachment>> getAttachmentsAsync(final String id) throws Exception {
+        return getAttachmentsAsync(config.getAccount(), id);
+    }
+
+    /**
+     * Gets the attachments of a message including their content. With an attachment cache configured, only the
+     * metadata is listed while all file attachments are cached; otherwise they are fetched with their content in one
+     * more list request, which also fills the cache.
+     */
+    public CompletableFuture<List<Attachment>> getAttachmentsAsync(final String account, final String id) throws Exception {
+        if (attachmentCache == null) {
+            return fetchAttachments(account, id);
+        }
+        return listAttachmentsAsync(account, id).thenCompose(attachments -> {
+            final var contents = new ArrayList<Attachment>(attachments.size());
+            for (final var attachment : attachments) {
+                final var cached = fromCache(id, attachment);
+                if (cached.isEmpty()) {
+                    try {
+                        return fetchAttachments(account, id).thenApply(fetched -> cache(id, fetched));
+                    } catch (final Exception e) {
+                        return CompletableFuture.failedFuture(e);
+                    }
+                }
+                contents.add(cached.get());
+            }
+            return CompletableFuture.completedFuture(List.copyOf(contents));
+        });
+    }
+
+    // item and reference attachments have no contentBytes and are returned as they are
+    private Optional<Attachment> fromCache(final String messageId, final Attachment attachment) {
+        if (!attachment.isFile()) {
+            return Optional.of(attachment);
+        }
+        try {
+            return attachmentCache.read(AttachmentCache.key(messageId, attachment)).map(attachment::withContent);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private List<Attachment> cache(final String messageId, final List<Attachment> attachments) {
+        for (final var attachment : attachments) {
+            if (!attachment.isFile() || attachment.contentBytes() == null) {
+                continue;
+            }
+            Path file = null;
+            try {
+                file = attachmentCache.newTempFile();
+                Files.write(file, attachment.contentBytes());
+                attachmentCache.put(AttachmentCache.key(messageId, attachment), file);
+            } catch (final IOException e) {
+                LOG.warn("Can not cache attachment {}", attachment.id(), e);
+                deleteQuietly(file);
+            }
+        }
+        return attachments;
+    }
+
+    private CompletableFuture<Attachment> cachedContent(final String account, final String messageId, final Attachment attachment) {
+        try {
+            final var cached = fromCache(messageId, attachment);
+            if (cached.isPresent()) {
+                return CompletableFuture.completedFuture(cached.get());
+            }
+            final var key      = AttachmentCache.key(messageId, attachment);
+            final var download = attachmentCache.newTempFile();
+            return downloadAttachmentAsync(account, messageId, attachment.id(), download)
+                .thenApply(file -> {
+                    try {
+                        final var content = Files.readAllBytes(file);
+                        attachmentCache.put(key, file);
+                        return attachment.withContent(content);
+                    } catch (final IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .whenComplete((result, error) -> {
+                    if (error != null) {
+                        deleteQuietly(download);
+                    }
+                });
+        } catch (final Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private static void deleteQuietly(final Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (final IOException e) {
+            LOG.debug("Can not delete {}", file, e);
+        }
+    }
+
+    private CompletableFuture<List<Attachment>> fetchAttachments(final String account, final String id) throws Exception {
+        final var uri     = new URI(String.format("%s/users/%s/messages/%s/attachments", config.getBaseUrl(), account, id));
+        final var cached  = responseCache.get(uri);
+        final var request = conditional(HttpRequest.newBuilder(), cached)
+                                       .GET()
+                                       .header(Headers.AUTHORIZATION.value, String.format("Bearer %s", tokens.getToken()))
+                                       .header(Headers.ACCEPT.value, MimeTypes.APPLICATION_JSON.value)
+                                       .uri(uri)
+                                       .build();
+        return send(account, Operation.GET_ATTACHMENTS, request, HttpResponse.BodyHandlers.ofString())
+            .thenApply(response -> cachedOr(response, cached, uri, account, id, "Can not get attachments! ",
+                                            body -> List.copyOf(readValue(Operation.GET_ATTACHMENTS, body, AttachmentsResponse.class).value())));
+    }
+
+    public List<Attachment> listAttachments(final String id) throws Exception {
+        return listAttachments(config.getAccount(), id);
+    }
+
+    /**
+     * Lists the attachments of a message without their content.
+     */
+    public List<Attachment> listAttachments(final String account, final String id) throws Exception {
+        return await(listAttachmentsAsync(account, id));
+    }
+
+    public CompletableFuture<List<Attachment>> listAttachmentsAsync(final String id) throws Exception {
+        return listAttachmentsAsync(config.getAccount(), id);
+    }
+
+    public CompletableFuture<List<Attachment>> listAttachmentsAsync(final String account, final String id) throws Exception {
+        final var uri     = new URI(String.format(
+            "%s/users/%s/messages/%s/attachments?%s",
+            config.getBaseUrl(),
+            account,
+            id,
+            "$select=id,name,contentType,size,lastModifiedDateTime"
+        ));
+        final var cached  = responseCache.get(uri);
+        final var request = conditional(HttpRequest.newBuilder(), cached)
                                        .GET()
-                                       .header(Headers.AUTHORIZATION.value, String.format("Bearer %s", config.getToken()))
+                                       .header(Headers.AUTHORIZATION.value, String.format("Bearer %s", tokens.getToken()))
                                        .header(Headers.ACCEPT.value, MimeTypes.APPLICATION_JSON.value)
+                                       .uri(uri)
+                                       .build();
+        return send(account, Operation.LIST_ATTACHMENTS, request, HttpResponse.BodyHandlers.ofString())
+            .thenApply(response -> cachedOr(response, cached, uri, account, id, "Can not list attachments! ",
+                                            body -> List.copyOf(readValue(Operation.LIST_ATTACHMENTS, body, AttachmentsResponse.class).value())));
+    }
+
+    public Path downloadAttachment(final String messageId, final String attachmentId, final Path target) throws Exception {
+        return downloadAttachment(config.getAccount(), messageId, attachmentId, target);
+    }
+
+    /**
+     * Downloads the raw content of a single attachment ({@code /$value}) into {@code target}.
+     */
+    public Path downloadAttachment(final String account, final String messageId, final String attachmentId, final Path target) throws Exception {
+        return await(downloadAttachmentAsync(account, messageId, attachmentId, target));
+    }
+
+    public CompletableFuture<Path> downloadAttachmentAsync(final String messageId, final String attachmentId, final Path target) throws Exception {
+        return downloadAttachmentAsync(config.getAccount(), messageId, attachmentId, target);
+    }
+
+    public CompletableFuture<Path> downloadAttachmentAsync(
+        final String account,
+        final String messageId,
+        final String attachmentId,
+        final Path target
+    ) throws Exception {
+        return attachmentValue(account, messageId, attachmentId, () -> HttpResponse.BodySubscribers.ofFile(target));
+    }
+
+    public InputStream openAttachment(final String messageId, final String attachmentId) throws Exception {
+        return openAttachment(config.getAccount(), messageId, attachmentId);
+    }
+
+    /**
+     * Opens the raw content of a single attachment ({@code /$value}) as a stream, which the caller must close.
+     */
+    public InputStream openAttachment(final String account, final String messageId, final String attachmentId) throws Exception {
+        return await(attachmentValue(account, messageId, attachmentId, HttpResponse.BodySubscribers::ofInputStream));
+    }
+
+    public CompletableFuture<Attachment> getAttachmentContentAsync(final String messageId, final Attachment attachment) throws Exception {
+        return getAttachmentContentAsync(config.getAccount(), messageId, attachment);
+    }
+
+    /**
+     * Adds the content of a listed file attachment, the raw bytes from {@code /$value} rather than base64 in JSON.
+     * With an attachment cache configured, it is served from the cache or downloaded into it. Other attachments have
+     * no content and are returned as they are.
+     */
+    public CompletableFuture<Attachment> getAttachmentContentAsync(final String account, final String messageId, final Attachment attachment) throws Exception {
+        if (!attachment.isFile()) {
+            return CompletableFuture.completedFuture(attachment);
+        }
+        if (attachmentCache != null) {
+            return cachedContent(account, messageId, attachment);
+        }
+        return attachmentValue(account, messageId, attachment.id(), HttpResponse.BodySubscribers::ofByteArray).thenApply(attachment::withContent);
+    }
+
+    private <T> CompletableFuture<T> attachmentValue(
+        final String account,
+        final String messageId,
+        final String attachmentId,
+        final Supplier<HttpResponse.BodySubscriber<T>> subscriber
+    ) throws Exception {
+        final var request = HttpRequest.newBuilder()
+                                       .GET()
+                                       .header(Headers.AUTHORIZATION.value, String.format("Bearer %s", tokens.getToken()))
                                        .uri(new URI(String.format(
-                                           "%s/users/%s/messages/%s/attachments",
+                                           "%s/users/%s/messages/%s/attachments/%s/$value",
                                            config.getBaseUrl(),
-                                           config.getAccount(),
-                                           id
-                                           // TODO $select but with contentBytes!
+                                           account,
+                                           messageId,
+                                           attachmentId
                                        )))
                                        .build();
+        // only successful responses reach the subscriber, errors are read as text
+        final HttpResponse.BodyHandler<T> bodyHandler = info -> info.statusCode() == 200 ? subscriber.get() : errorBody(info);
+        return send(account, Operation.ATTACHMENT_CONTENT, request, bodyHandler)
+            .thenApply(response -> {
+                if (response.statusCode() != 200) {
+                    throw new RuntimeException("Can not get attachment " + attachmentId + "! " + response.statusCode());
+                }
+                return response.body();
+            });
+    }
 
-        final var response     = HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
-        final var responseBody = response.body();
-        if (response.statusCode() < 200 || response.statusCode() >= 400) {
-            LOG.warn("Request failed: {} {}", response.statusCode(), responseBody);
-            throw new RuntimeException("Can not get attachments! " + response.statusCode());
+    public List<Attachment> saveAttachments(final String id, final Path directory) throws Exception {
+        return saveAttachments(config.getAccount(), id, directory);
+    }
+
+    /**
+     * Saves all attachments of a message into {@code directory}, named after the attachment.
+     * See {@link #streamAttachments(String, String, Function)}.
+     */
+    public List<Attachment> saveAttachments(final String account, final String id, final Path directory) throws Exception {
+        Files.createDirectories(directory);
+        final var names = new HashSet<String>();
+        return streamAttachments(account, id, attachment -> {
+            var name = (attachment.name() != null ? attachment.name() : attachment.id()).replaceAll("[\\\\/:*?\"<>|]", "_");
+            if (name.isBlank() || name.matches("\\.+")) {
+                name = attachment.id();
+            }
+            var file = directory.resolve(name);
+            for (int i = 1; !names.add(file.getFileName().toString()); i++) {
+                file = directory.resolve(i + "_" + name);
+            }
+            try {
+                return Files.newByteChannel(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    public List<Attachment> streamAttachments(
+        final String id,
+        final Function<Attachment, WritableByteChannel> sink
+    ) throws Exception {
+        return streamAttachments(config.getAccount(), id, sink);
+    }
+
+    /**
+     * Downloads all attachments of a message and decodes their base64 {@code contentBytes} directly into the
+     * channel returned by {@code sink}, without holding the content in memory. The sink always receives the complete
+     * metadata. The channel is closed afterwards. Returns the metadata of all attachments, without content.
+     */
+    public List<Attachment> streamAttachments(
+        final String account,
+        final String id,
+        final Function<Attachment, WritableByteChannel> sink
+    ) throws Exception {
+        final var request = HttpRequest.newBuilder()
+                                       .GET()
+                                       .header(Headers.AUTHORIZATION.value, String.format("Bearer %s", tokens.getToken()))
+                                       .header(Headers.ACCEPT.value, MimeTypes.APPLICATION_JSON.value)
+                                       .uri(new URI(String.format("%s/users/%s/messages/%s/attachments", config.getBaseUrl(), account, id)))
+                                       .build();
+        final var response = await(send(account, Operation.GET_ATTACHMENTS, request, HttpResponse.BodyHandlers.ofInputStream()));
+        try (final var body = response.body()) {
+            if (response.statusCode() < 200 || response.statusCode() >= 400) {
+                LOG.warn("Request failed: {} {}", response.statusCode(), new String(body.readAllBytes(), StandardCharsets.UTF_8));
+                throw new RuntimeException("Can not get attachments! " + response.statusCode());
+            }
+            return readAttachments(body, sink);
         }
-        LOG.debug("Received: {}", responseBody);
-        return MAPPER.readValue(responseBody, AttachmentsResponse.class).value();
+    }
+
+    private static List<Attachment> readAttachments(
+        final InputStream body,
+        final Function<Attachment, WritableByteChannel> sink
+    ) throws IOException {
+        final var attachments = new ArrayList<Attachment>();
+        try (final var parser = MAPPER.getFactory().createParser(body)) {
+            // skip to the "value" array
+            while (parser.nextToken() != null) {
+                if (parser.currentToken() == JsonToken.FIELD_NAME && "value".equals(parser.getCurrentName())) {
+                    parser.nextToken();
+                    break;
+                }
+            }
+            if (parser.currentToken() != JsonToken.START_ARRAY) {
+                return attachments;
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                String  type                 = null;
+                String  attachmentId         = null;
+                String  name                 = null;
+                String  contentType          = null;
+                long    size                 = 0;
+                Instant lastModifiedDateTime = null;
+                int     seen                 = 0;
+                boolean streamed             = false;
+                Path    spilled              = null;
+                try {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        final var field = parser.getCurrentName();
+                        parser.nextToken();
+                        switch (field) {
+                            case "@odata.type" -> {
+                                type = parser.getValueAsString();
+                                seen |= 1;
+                            }
+                            case "id" -> {
+                                attachmentId = parser.getValueAsString();
+                                seen |= 2;
+                            }
+                            case "name" -> {
+                                name = parser.getValueAsString();
+                                seen |= 4;
+                            }
+                            case "contentType" -> {
+                                contentType = parser.getValueAsString();
+                                seen |= 8;
+                            }
+                            case "size" -> {
+                                size = parser.getValueAsLong();
+                                seen |= 16;
+                            }
+                            case "lastModifiedDateTime" -> {
+                                lastModifiedDateTime = parser.getValueAsString() != null ? Instant.parse(parser.getValueAsString()) : null;
+                                seen |= 32;
+                            }
+                            case "contentBytes" -> {
+                                if (parser.currentToken() == JsonToken.VALUE_NULL || streamed || spilled != null) {
+                                    continue;
+                                }
+                                if (seen == ATTACHMENT_METADATA) {
+                                    // Graph's order, the metadata is complete and the content goes straight to the sink
+                                    final var attachment = new Attachment(type, attachmentId, name, contentType, size, null, lastModifiedDateTime);
+                                    try (final var channel = sink.apply(attachment)) {
+                                        final var written = parser.readBinaryValue(Channels.newOutputStream(channel));
+                                        LOG.debug("Wrote {} bytes of {}", written, name);
+                                    }
+                                    streamed = true;
+                                } else {
+                                    // metadata follows the content, so the content waits in a temporary file until
+                                    // the attachment ends and the sink can be given all of it
+                                    spilled = Files.createTempFile("attachment", null);
+                                    try (final var out = Files.newOutputStream(spilled)) {
+                                        parser.readBinaryValue(out);
+                                    }
+                                }
+                            }
+                            default -> parser.skipChildren();
+                        }
+                    }
+                    final var attachment = new Attachment(type, attachmentId, name, contentType, size, null, lastModifiedDateTime);
+                    if (spilled != null) {
+                        try (final var channel = sink.apply(attachment)) {
+                            final var written = Files.copy(spilled, Channels.newOutputStream(channel));
+                            LOG.debug("Wrote {} bytes of {} after its metadata", written, name);
+                        }
+                    }
+                    attachments.add(attachment);
+                } finally {
+                    if (spilled != null) {
+                        Files.deleteIfExists(spilled);
+                    }
+                }
+            }
+        }
+        return attachments;
     }
 
     public List<Message> getMessages(final boolean unreadOnly) throws Exception {
+        return getMessages(config.getAccount(), unreadOnly);
+    }
+
+    public List<Message> getMessages(final String account, final boolean unreadOnly) throws Exception {
+        return await(getMessagesAsync(account, unreadOnly));
+    }
+
+    public CompletableFuture<List<Message>> getMessagesAsync(final boolean unreadOnly) throws Exception {
+        return getMessagesAsync(config.getAccount(), unreadOnly);
+    }
+
+    public CompletableFuture<List<Message>> getMessagesAsync(final String account, final boolean unreadOnly) throws Exception {
+        return fetchMessages(account, messagesUri(account, unreadOnly, 0), true)
+            .thenApply(Page::items);
+    }
+
+    public Message getMessage(final String id) throws Exception {
+        return getMessage(config.getAccount(), id);
+    }
+
+    public Message getMessage(final String account, final String id) throws Exception {
+        return await(getMessageAsync(account, id));
+    }
+
+    public CompletableFuture<Message> getMessageAsync(final String id) throws Exception {
+        return getMessageAsync(config.getAccount(), id);
+    }
+
+    public CompletableFuture<Message> getMessageAsync(final String account, final String id) throws Exception {
+        final var uri     = new URI(String.format("%s/users/%s/messages/%s?$select=%s", config.getBaseUrl(), account, id, MESSAGE_FIELDS));
+        final var cached  = responseCache.get(uri);
+        final var request = conditional(HttpRequest.newBuilder(), cached)
+                                       .GET()
+                                       .header(Headers.AUTHORIZATION.value, String.format("Bearer %s", tokens.getToken()))
+                                       .header(Headers.ACCEPT.value, MimeTypes.APPLICATION_JSON.value)
+                                       .uri(uri)
+                                       .build();
+        return send(account, Operation.GET_MESSAGE, request, HttpResponse.BodyHandlers.ofString())
+            .thenApply(response -> cachedOr(response, cached, uri, account, id, "Can not get message! ",
+                                            body -> readValue(Operation.GET_MESSAGE, body, Message.class)));
+    }
+
+    /**
+     * Subscribes {@code notificationUrl} to created, updated and deleted messages of the mailbox. Graph validates
+     * the url before answering, see {@link SubscriptionManager}.
+     */
+    public Subscription createSubscription(
+        final String account,
+        final String notificationUrl,
+        final String clientState,
+        final Instant expiration
+    ) throws Exception {
+        final var subscription = new Subscription(
+            null,
+            "created,updated,deleted",
+            notificationUrl,
+            String.format("users/%s/messages", account),
+            clientState,
+            expiration
+        );
+        return subscriptionRequest(account, "POST", "", subscription, "Can not create subscription! ");
+    }
+
+    public Subscription renewSubscription(final String account, final String subscriptionId, final Instant expiration) throws Exception {
+        final var subscription = new Subscription(null, null, null, null, null, expiration);
+        return subscriptionRequest(account, "PATCH", "/" + subscriptionId, subscription, "Can not renew subscription! ");
+    }
+
+    public void deleteSubscription(final String account, final String subscriptionId) throws Exception {
+        final var request = HttpRequest.newBuilder()
+                                       .DELETE()
+                                       .header(Headers.AUTHORIZATION.value, String.format("Bearer %s", tokens.getToken()))
+                                       .uri(new URI(String.format("%s/subscriptions/%s", config.getBaseUrl(), subscriptionId)))
+                                       .build();
+        final var response = await(send(account, Operation.SUBSCRIPTION, request, HttpResponse.BodyHandlers.ofString()));
+        if (response.statusCode() != 204 && response.statusCode() != 404) {
+            LOG.warn("Request failed: {} {}", response.statusCode(), response.body());
+            throw new RuntimeException("Can not delete subscription! " + response.statusCode());
+        }
+    }
+
+    private Subscription subscriptionRequest(
+        final String account,
+        final String method,
+        final String path,
+        final Subscription subscription,
+        final String error
+    ) throws Exception {
+        final var request = HttpRequest.newBuilder()
+                                       .method(method, HttpRequest.BodyPublishers.ofByteArray(MAPPER.writeValueAsBytes(subscription)))
+                                       .header(Headers.CONTENT_TYPE.value, MimeTypes.APPLICATION_JSON.value)
+                                       .header(Headers.AUTHORIZATION.value, String.format("Bearer %s", tokens.getToken()))
+                                       .header(Headers.ACCEPT.value, MimeTypes.APPLICATION_JSON.value)
+                                       .uri(new URI(String.format("%s/subscriptions%s", config.getBaseUrl(), path)))
+                                       .build();
+        final var response = await(send(account, Operation.SUBSCRIPTION, request, HttpResponse.BodyHandlers.ofString()));
+        if (response.statusCode() < 200 || response.statusCode() >= 300) {
+            LOG.warn("Request failed: {} {}", response.statusCode(), response.body());
+            throw new RuntimeException(error + response.statusCode());
+        }
+        LOG.debug("Received: {}", response.body());
+        return readValue(Operation.SUBSCRIPTION, response.body(), Subscription.class);
+    }
+
+    public Stream<Message> streamMessages(final boolean unreadOnly, final int pageSize) throws Exception {
+        return streamMessages(config.getAccount(), unreadOnly, pageSize);
+    }
+
+    /**
+     * Streams all messages of the mailbox, following {@code @odata.nextLink} page by page.
+     * Pages are fetched lazily with one page of read-ahead; close the stream to stop early.
+     */
+    public Stream<Message> streamMessages(final String account, final boolean unreadOnly, final int pageSize) throws Exception {
+        final var first = messagesUri(account, unreadOnly, pageSize);
+        return new PageIterator<>(first, uri -> fetchMessages(account, uri, uri.equals(first))).stream();
+    }
+
+    public <T> List<T> getMessages(final MessageQuery query, final Class<T> type) throws Exception {
+        return getMessages(config.getAccount(), query, type);
+    }
+
+    /**
+     * The first page of messages for {@code query}, bound to {@code type}. Select only what {@code type} needs,
+     * see {@link MessageQuery#of(Class)}; properties it does not declare are skipped.
+     */
+    public <T> List<T> getMessages(final String account, final MessageQuery query, final Class<T> type) throws Exception {
+        return await(getMessagesAsync(account, query, type));
+    }
+
+    public <T> CompletableFuture<List<T>> getMessagesAsync(final String account, final MessageQuery query, final Class<T> type) throws Exception {
+        return fetchPage(account, messagesUri(account, query), type)
+            .thenApply(Page::items);
+    }
+
+    public <T> Stream<T> streamMessages(final MessageQuery query, final Class<T> type) throws Exception {
+        return streamMessages(config.getAccount(), query, type);
+    }
+
+    /**
+     * Streams all messages for {@code query} like {@link #streamMessages(String, boolean, int)}, bound to {@code type}.
+     */
+    public <T> Stream<T> streamMessages(final String account, final MessageQuery query, final Class<T> type) throws Exception {
+        return new PageIterator<>(messagesUri(account, query), uri -> fetchPage(account, uri, type)).stream();
+    }
+
+    public <T> long forEachMessage(final MessageQuery query, final Class<T> type, final Consumer<? super T> sink) throws Exception {
+        return forEachMessage(config.getAccount(), query, type, sink);
+    }
+
+    /**
+     * Passes every message for {@code query} to {@code sink} while its page is parsed, one page at a time.
+     * No list is built, so a sink that keeps nothing allocates only the bound {@code type} per message.
+     * Returns the number of messages.
+     */
+    public <T> long forEachMessage(
+        final String account,
+        final MessageQuery query,
+        final Class<T> type,
+        final Consumer<? super T> sink
+    ) throws Exception {
+        final var count = new long[1];
+        var       uri   = messagesUri(account, query);
+        while (uri != null) {
+            final var nextLink = await(fetchPage(account, uri, type, item -> {
+                count[0]++;
+                sink.accept(item);
+            }));
+            uri = nextLink != null ? new URI(nextLink) : null;
+        }
+        return count[0];
+    }
+
+    /**
+     * Streams the messages received in {@code [from, to)} as returned by Graph, oldest first, without binding them
+     * to {@link Message}. {@code select} limits the properties (null for all), {@code expandAttachments} includes the
+     * attachments with their content. Pages are fetched like {@link #streamMessages(String, boolean, int)}.
+     */
+    public Stream<ObjectNode> streamMessageNodes(
+        final String account,
+        final Instant from,
+        final Instant to,
+        final String select,
+        final boolean expandAttachments,
+        final int pageSize
+    ) throws Exception {
+        final var query = (select != null ? MessageQuery.select(select) : MessageQuery.all())
+            .filter("receivedDateTime ge " + from + " and receivedDateTime lt " + to)
+            .orderBy("receivedDateTime")
+            .top(pageSize);
+        final var uri   = new URI(messagesUri(account, query) + (expandAttachments ? "&$expand=attachments" : ""));
+        return new PageIterator<>(uri, next -> fetchPage(account, next, ObjectNode.class)).stream();
+    }
+
+    private <T> CompletableFuture<Page<T>> fetchPage(final String account, final URI uri, final Class<T> type) {
+        final var items = new ArrayList<T>();
+        return fetchPage(account, uri, type, items::add)
+            .thenApply(nextLink -> new Page<>(items, nextLink));
+    }
+
+    /**
+     * Binds each element of the page's {@code value} to {@code type} and hands it to {@code sink} as it is read
+     * from the response, without a list, a String or a byte array of the page. Completes with the next link, null on the last page.
+     */
+    private <T> CompletableFuture<String> fetchPage(final String account, final URI uri, final Class<T> type, final Consumer<? super T> sink) {
+        final String token;
+        try {
+            token = tokens.getToken();
+        } catch (final Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
         final var request = HttpRequest.newBuilder()
                                        .GET()
-                                       .header(Headers.AUTHORIZATION.value, String.format("Bearer %s", config.getToken()))
+                                       .header(Headers.AUTHORIZATION.value, String.format("Bearer %s", token))
                                        .header(Headers.ACCEPT.value, MimeTypes.APPLICATION_JSON.value)
-                                       .uri(new URI(String.format(
-                                           "%s/users/%s/messages?%s&%s&%s",
-                                           config.getBaseUrl(),
-                                           config.getAccount(),
-                                           "$select=subject,from,isRead,sentDateTime,receivedDateTime,hasAttachments",
-                                           unreadOnly ? "$filter=isRead%20eq%20false" : "",
-                                           "$orderby=receivedDateTime%20desc"
-                                       )))
+                                       .uri(uri)
+                                       .build();
+        final HttpResponse.BodyHandler<InputStream> bodyHandler = info -> info.statusCode() >= 200 && info.statusCode() < 300
+                                                                          ? HttpResponse.BodySubscribers.ofInputStream()
+                                                                          : errorBody(info);
+        return send(account, Operation.GET_MESSAGES, request, bodyHandler)
+            .thenApply(response -> {
+                if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                    throw new RuntimeException("Can not get messages! " + response.statusCode());
+                }
+                LOG.debug("Receiving {}", uri);
+                return readPage(Operation.GET_MESSAGES, response.body(), type, sink);
+            });
+    }
+
+    private <T> String readPage(final Operation operation, final InputStream content, final Class<T> type, final Consumer<? super T> sink) {
+        final var timed   = metrics != MailMetrics.NOOP;
+        long      parsing = 0;
+        String    nextLink = null;
+        try (final var parser = MAPPER.createParser(content)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final var field = parser.getCurrentName();
+                parser.nextToken();
+                if ("value".equals(field)) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        final var start = timed ? System.nanoTime() : 0;
+                        final var item  = MAPPER.readValue(parser, type);
+                        parsing += timed ? System.nanoTime() - start : 0;
+                        sink.accept(item);
+                    }
+                } else if ("@odata.nextLink".equals(field)) {
+                    nextLink = parser.getValueAsString();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (timed) {
+            metrics.parsed(operation, parsing);
+        }
+        return nextLink;
+    }
+
+    public InputStream openMessage(final String account, final String id) throws Exception {
+        return await(openMessageAsync(account, id));
+    }
+
+    /**
+     * Opens the raw MIME content of a message ({@code /$value}) as a stream, which the caller must close.
+     */
+    public CompletableFuture<InputStream> openMessageAsync(final String account, final String id) throws Exception {
+        final var request = HttpRequest.newBuilder()
+                                       .GET()
+                                       .header(Headers.AUTHORIZATION.value, String.format("Bearer %s", tokens.getToken()))
+                                       .uri(new URI(String.format("%s/users/%s/messages/%s/$value", config.getBaseUrl(), account, id)))
+                                       .build();
+        final HttpResponse.BodyHandler<InputStream> bodyHandler = info -> info.statusCode() == 200
+                                                                          ? HttpResponse.BodySubscribers.ofInputStream()
+                                                                          : errorBody(info);
+        return send(account, Operation.MESSAGE_CONTENT, request, bodyHandler)
+            .thenApply(response -> {
+                if (response.statusCode() != 200) {
+                    throw new RuntimeException("Can not get message " + id + "! " + response.statusCode());
+                }
+                return response.body();
+            });
+    }
+
+    /**
+     * Only a first page is {@code cacheable}: the next links carry one-off skip tokens that are never requested
+     * again, and caching them would keep every page of a scan on the heap.
+     */
+    private CompletableFuture<Page<Message>> fetchMessages(final String account, final URI uri, final boolean cacheable) {
+        // a full scan can outlive a token, so each page asks for the current one
+        final String token;
+        try {
+            token = tokens.getToken();
+        } catch (final Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        final var cached  = cacheable ? responseCache.get(uri) : null;
+        final var request = conditional(HttpRequest.newBuilder(), cached)
+                                       .GET()
+                                       .header(Headers.AUTHORIZATION.value, String.format("Bearer %s", token))
+                                       .header(Headers.ACCEPT.value, MimeTypes.APPLICATION_JSON.value)
+                                       .uri(uri)
                                        .build();
-        final var response = HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
-        if (response.statusCode() < 200 || response.statusCode() >= 400) {
-            throw new RuntimeException("Can not get messages! " + response.statusCode());
+        // the page is decoded while it arrives, a 304 has no body to decode
+        final HttpResponse.BodyHandler<InputStream> bodyHandler = info -> info.statusCode() >= 200 && info.statusCode() < 300
+                                                                          ? HttpResponse.BodySubscribers.ofInputStream()
+                                                                          : info.statusCode() == 304
+                                                                            ? HttpResponse.BodySubscribers.replacing(null)
+                                                                            : errorBody(info);
+        return send(account, Operation.GET_MESSAGES, request, bodyHandler)
+            .thenApply(response -> {
+                if (response.statusCode() == 304 && cached != null) {
+                    LOG.debug("Not modified: {}", uri);
+                    @SuppressWarnings("unchecked") final var page = (Page<Message>) cached.value();
+                    return page;
+                }
+                if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                    throw new RuntimeException("Can not get messages! " + response.statusCode());
+                }
+                final var items = new ArrayList<Message>();
+                final var start = metrics != MailMetrics.NOOP ? System.nanoTime() : 0;
+                final String nextLink;
+                try (final var body = response.body()) {
+                    nextLink = messagesDecoder.decode(body, items::add);
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (metrics != MailMetrics.NOOP) {
+                    metrics.parsed(Operation.GET_MESSAGES, System.nanoTime() - start);
+                }
+                LOG.debug("Received {} messages from {}", items.size(), uri);
+                final var page = new Page<>(Collections.unmodifiableList(items), nextLink);
+                if (cacheable) {
+                    response.headers()
+                            .firstValue(Headers.ETAG.value)
+                            .ifPresent(etag -> responseCache.put(uri, new ResponseCache.Entry(etag, page, account, null)));
+                }
+                return page;
+            });
+    }
+
+    public MailboxChanges syncMessages(final String folder, final Path deltaTokenFile) throws Exception {
+        return syncMessages(config.getAccount(), folder, deltaTokenFile);
+    }
+
+    /**
+     * {@link #syncMessagesSince} the delta link stored in {@code deltaTokenFile}, if there is one. The file is not
+     * updated; save the returned delta link with {@link #saveDeltaLink} once the changes are processed.
+     */
+    public MailboxChanges syncMessages(final String account, final String folder, final Path deltaTokenFile) throws Exception {
+        return syncMessagesSince(account, folder, Files.exists(deltaTokenFile) ? Files.readString(deltaTokenFile).trim() : null);
+    }
+
+    /**
+     * Returns the messages of the given folder that were added, changed or removed since the sync that returned
+     * {@code deltaLink}. Without a delta link, or with an expired one, the whole folder is returned as changed.
+     * The changes carry the delta link for the next sync.
+     */
+    public MailboxChanges syncMessagesSince(final String account, final String folder, final String deltaLink) throws Exception {
+        final var initial = deltaLink == null;
+        var       uri     = initial
+                            ? new URI(String.format(
+                                "%s/users/%s/mailFolders/%s/messages/delta?%s",
+                                config.getBaseUrl(),
+                                account,
+                                folder,
+                                "$select=subject,from,isRead,sentDateTime,receivedDateTime,hasAttachments"
+                            ))
+                            : new URI(deltaLink);
+
+        final var changed = new LinkedHashMap<String, Message>();
+        final var removed = new LinkedHashSet<String>();
+        while (true) {
+            final var request = HttpRequest.newBuilder()
+                                           .GET()
+                                           .header(Headers.AUTHORIZATION.value, String.format("Bearer %s", tokens.getToken()))
+                                           .header(Headers.ACCEPT.value, MimeTypes.APPLICATION_JSON.value)
+                                           .uri(uri)
+                                           .build();
+            final var response = await(send(account, Operation.SYNC, request, HttpResponse.BodyHandlers.ofString()));
+            if (response.statusCode() == 410 && !initial) {
+                LOG.warn("Delta token expired, starting a full sync");
+                return syncMessagesSince(account, folder, null);
+            }
+            if (response.statusCode() < 200 || response.statusCode() >= 400) {
+                throw new RuntimeException("Can not sync messages! " + response.statusCode());
+            }
+            final var responseBody = response.body();
+            LOG.debug("Received: {}", responseBody);
+            final var page = readValue(Operation.SYNC, responseBody, DeltaResponse.class);
+            for (final var item : page.value()) {
+                final var id = item.path("id").asText();
+                if (item.has("@removed")) {
+                    changed.remove(id);
+                    removed.add(id);
+                } else {
+                    removed.remove(id);
+                    changed.put(id, MAPPER.treeToValue(item, Message.class));
+                }
+            }
+            if (page.nextLink() != null) {
+                uri = new URI(page.nextLink());
+            } else if (page.deltaLink() != null) {
+                return new MailboxChanges(List.copyOf(changed.values()), List.copyOf(removed), initial, page.deltaLink());
+            } else {
+                throw new RuntimeException("Can not sync messages! Neither nextLink nor deltaLink received");
+            }
+        }
+    }
+
+    /**
+     * Stores the delta link of {@code changes} for the next {@link #syncMessages(String, String, Path)}, replacing
+     * the file atomically.
+     */
+    public static void saveDeltaLink(final Path deltaTokenFile, final MailboxChanges changes) throws IOException {
+        final var tmp = deltaTokenFile.resolveSibling(deltaTokenFile.getFileName() + ".tmp");
+        Files.writeString(tmp, changes.deltaLink());
+        Files.move(tmp, deltaTokenFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private URI messagesUri(final String account, final boolean unreadOnly, final int pageSize) throws Exception {
+        return messagesUri(account, MessageQuery.select(MESSAGE_FIELDS)
+                                                .filter(unreadOnly ? "isRead eq false" : null)
+                                                .orderBy("receivedDateTime desc")
+                                                .top(pageSize));
+    }
+
+    private URI messagesUri(final String account, final MessageQuery query) throws Exception {
+        return new URI(String.format("%s/users/%s/messages?%s", config.getBaseUrl(), account, query.toQueryString()));
+    }
+
+    private static HttpRequest.Builder conditional(final HttpRequest.Builder builder, final ResponseCache.Entry cached) {
+        return cached != null ? builder.header(Headers.IF_NONE_MATCH.value, cached.etag()) : builder;
+    }
+
+    /**
+     * Returns the cached value if the server answered 304, otherwise parses the body and caches it with its ETag.
+     * {@code messageId} tags responses below a single message, null marks message lists.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T cachedOr(
+        final HttpResponse<String> response,
+        final ResponseCache.Entry cached,
+        final URI uri,
+        final String account,
+        final String messageId,
+        final String error,
+        final Function<String, T> parser
+    ) {
+        if (response.statusCode() == 304 && cached != null) {
+            LOG.debug("Not modified: {}", uri);
+            return (T) cached.value();
         }
         final var responseBody = response.body();
+        if (response.statusCode() < 200 || response.statusCode() >= 300) {
+            LOG.warn("Request failed: {} {}", response.statusCode(), responseBody);
+            throw new RuntimeException(error + response.statusCode());
+        }
         LOG.debug("Received: {}", responseBody);
-        return MAPPER.readValue(responseBody, MessagesResponse.class).value();
+        final var value = parser.apply(responseBody);
+        response.headers()
+                .firstValue(Headers.ETAG.value)
+                .ifPresent(etag -> responseCache.put(uri, new ResponseCache.Entry(etag, value, account, messageId)));
+        return value;
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> send(
+        final String account,
+        final Operation operation,
+        final HttpRequest request,
+        final HttpResponse.BodyHandler<T> bodyHandler
+    ) {
+        final var mailbox = mailbox(account);
+        if (metrics == MailMetrics.NOOP) {
+            return mailbox.limiter().submit(() -> attempt(mailbox, request, bodyHandler, 0));
+        }
+
+        final var start = System.nanoTime();
+        metrics.started(operation);
+        final HttpResponse.BodyHandler<T> counting = info -> new CountingBodySubscriber<>(
+            bodyHandler.apply(info),
+            bytes -> metrics.received(operation, bytes)
+        );
+        return mailbox.limiter()
+                      .submit(() -> attempt(mailbox, request, counting, 0))
+                      .whenComplete((response, e) -> metrics.completed(
+                          operation,
+                          response != null ? response.statusCode() : 0,
+                          System.nanoTime() - start
+                      ));
+    }
+
+    private Mailbox mailbox(final String account) {
+        return mailboxes.computeIfAbsent(
+            account,
+            key -> new Mailbox(new InFlightLimiter(maxInFlight), new AdaptiveRateLimiter(maxRequestsPerSecond))
+        );
+    }
+
+    /**
+     * Sends the request once the mailbox's rate allows it and retries throttled (429, 503, 504) and failed
+     * requests with exponential backoff and jitter. A {@code Retry-After} header always takes precedence
+     * and pauses the whole mailbox. A POST is only retried when Graph did not process it, see {@link #retryable}.
+     */
+    private <T> CompletableFuture<HttpResponse<T>> attempt(
+        final Mailbox mailbox,
+        final HttpRequest request,
+        final HttpResponse.BodyHandler<T> bodyHandler,
+        final int retry
+    ) {
+        final var wait = mailbox.rate().reserve();
+        return delay(wait)
+            .thenCompose(ignored -> {
+                requests.increment();
+                return Http.CLIENT.sendAsync(request, bodyHandler);
+            })
+            .handle((response, e) -> {
+                final var status = response != null ? response.statusCode() : 0;
+                if (response != null && status != 429 && status != 503 && status != 504) {
+                    mailbox.rate().onSuccess();
+                    if (status >= 200 && status < 300) {
+                        successful.increment();
+                    }
+                    return CompletableFuture.completedFuture(response);
+                }
+
+                final long pause;
+                if (response != null) {
+                    throttled.increment();
+                    pause = retryAfter(response).orElse(backoff(retry));
+                    mailbox.rate().onThrottled(pause);
+                } else {
+                    pause = backoff(retry);
+                }
+                if (retry >= maxRetries || !retryable(request, response)) {
+                    failed.increment();
+                    return response != null
+                           ? CompletableFuture.completedFuture(response)
+                           : CompletableFuture.<HttpResponse<T>>failedFuture(e);
+                }
+                retried.increment();
+                if (response != null) {
+                    discard(response);
+                }
+                LOG.debug("Retrying {} {} in {} ms ({})", request.method(), request.uri(), pause, response != null ? status : e);
+                return delay(pause).thenCompose(ignored -> attempt(mailbox, request, bodyHandler, retry + 1));
+            })
+            .thenCompose(Function.identity());
+    }
+
+    // GET, PUT, DELETE and the PATCHes setting values can be repeated. A POST ($batch, subscriptions) is repeated only
+    // after a 429, or a 503 with Retry-After, which Graph sends for requests it did not process; a 504 or a lost
+    // connection may come after it acted, and a repeated POST would e.g. create a second subscription
+    private static boolean retryable(final HttpRequest request, final HttpResponse<?> response) {
+        if (!"POST".equals(request.method())) {
+            return true;
+        }
+        return response != null
+               && (response.statusCode() == 429 || response.statusCode() == 503 && response.headers().firstValue("Retry-After").isPresent());
+    }
+
+    private static CompletableFuture<Void> delay(final long millis) {
+        return millis <= 0
+               ? CompletableFuture.completedFuture(null)
+               : CompletableFuture.runAsync(() -> { }, CompletableFuture.delayedExecutor(millis, TimeUnit.MILLISECONDS));
+    }
+
+    private static long backoff(final int retry) {
+        final var max = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(retry, 20));
+        return ThreadLocalRandom.current().nextLong(max / 2, max + 1);
+    }
+
+    private static Optional<Long> retryAfter(final HttpResponse<?> response) {
+        return response.headers()
+                       .firstValue("Retry-After")
+                       .flatMap(MailServer::retryAfter);
+    }
+
+    private static Optional<Long> retryAfter(final BatchResponse.Item item) {
+        if (item.headers() == null) {
+            return Optional.empty();
+        }
+        return item.headers()
+                   .entrySet()
+                   .stream()
+                   .filter(header -> "Retry-After".equalsIgnoreCase(header.getKey()))
+                   .findFirst()
+                   .flatMap(header -> retryAfter(header.getValue()));
+    }
+
+    // delay-seconds or an HTTP-date; a malformed value is ignored and the backoff applies
+    private static Optional<Long> retryAfter(final String value) {
+        try {
+            return Optional.of(Long.parseLong(value.trim()) * 1000);
+        } catch (final NumberFormatException e) {
+            try {
+                final var date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Optional.of(Math.max(0, Duration.between(ZonedDateTime.now(), date).toMillis()));
+            } catch (final DateTimeParseException ignored) {
+                LOG.debug("Ignoring malformed Retry-After: {}", value);
+                return Optional.empty();
+            }
+        }
+    }
+
+    // a retried response is not handed out, so a streamed body has to be released here
+    private static void discard(final HttpResponse<?> response) {
+        if (response.body() instanceof final Closeable body) {
+            try {
+                body.close();
+            } catch (final IOException e) {
+                LOG.debug("Can not close response body", e);
+            }
+        }
+    }
+
+    private static <T> HttpResponse.BodySubscriber<T> errorBody(final HttpResponse.ResponseInfo info) {
+        return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8), body -> {
+            LOG.warn("Request failed: {} {}", info.statusCode(), body);
+            return null;
+        });
+    }
+
+    private <T> T readValue(final Operation operation, final String content, final Class<T> type) {
+        final var start = metrics != MailMetrics.NOOP ? System.nanoTime() : 0;
+        try {
+            return MAPPER.readValue(content, type);
+        } catch (final JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (metrics != MailMetrics.NOOP) {
+                metrics.parsed(operation, System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static <T> T await(final CompletableFuture<T> future) throws Exception {
+        try {
+            return future.join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof final Exception cause) {
+                throw cause;
+            }
+            throw e;
+        }
     }
 }
@@ -0,0 +1,273 @@
+package com.alphabrik.msal;
+
+import com.alphabrik.msal.model.ExportSummary;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Exports a mailbox into a directory, split into shards by {@code receivedDateTime} that are fetched in parallel.
+ * <p>
+ * {@link Format#NDJSON} writes each message with its attachments as one JSON line into {@code shard-NNNN.ndjson.gz},
+ * {@link Format#MIME} writes the raw MIME content of each message as an {@code .eml} entry into {@code shard-NNNN.zip}.
+ * A shard is written to a {@code .part} file, renamed when complete and then recorded in {@code checkpoint.json}.
+ * Exporting again into the same directory skips the recorded shards and starts unfinished ones over.
+ * Each shard holds at most two pages, plus {@value #MIME_READ_AHEAD} open message bodies for MIME.
+ */
+public class MailboxExporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MailboxExporter.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+
+    private static final String CHECKPOINT      = "checkpoint.json";
+    private static final int    MIME_READ_AHEAD = 4;
+
+    public enum Format {
+        NDJSON("ndjson.gz"),
+        MIME("zip");
+
+        public final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    private record Shard(int index, Instant from, Instant to) {
+
+    }
+
+    private final MailServer server;
+    private final int        parallelism;
+    private final int        pageSize;
+
+    public MailboxExporter(final MailServer server, final int parallelism, final int pageSize) {
+        if (parallelism < 1 || pageSize < 1) {
+            throw new IllegalArgumentException("parallelism and pageSize must be positive");
+        }
+        this.server = server;
+        this.parallelism = parallelism;
+        this.pageSize = pageSize;
+    }
+
+    public MailboxExporter(final MailServer server, final int parallelism) {
+        // with attachments expanded, a page can be many MB
+        this(server, parallelism, 10);
+    }
+
+    /**
+     * Exports the messages received in {@code [from, to)}, split into {@code shards} equal time ranges.
+     * Resuming requires the same account, range, shard count and format as the first run.
+     */
+    public ExportSummary export(
+        final String account,
+        final Instant from,
+        final Instant to,
+        final int shards,
+        final Format format,
+        final Path directory
+    ) throws IOException, InterruptedException {
+        if (!from.isBefore(to) || shards < 1) {
+            throw new IllegalArgumentException("Empty range or no shards: " + from + " - " + to + ", " + shards);
+        }
+        Files.createDirectories(directory);
+        final var checkpoint = loadCheckpoint(directory, account, from, to, shards, format);
+        final var done       = (ObjectNode) checkpoint.get("done");
+
+        final var start    = System.nanoTime();
+        final var step     = Duration.between(from, to).dividedBy(shards);
+        final var messages = new LongAdder();
+        final var bytes    = new LongAdder();
+        final var skipped  = new AtomicInteger();
+        final var executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            final var futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < shards; i++) {
+                final var shard = new Shard(i, boundary(from, step, i), i == shards - 1 ? to : boundary(from, step, i + 1));
+                if (done.has(String.valueOf(i))) {
+                    skipped.incrementAndGet();
+                    continue;
+                }
+                futures.add(executor.submit(() -> {
+                    final var result = exportShard(account, shard, format, directory);
+                    messages.add(result[0]);
+                    bytes.add(result[1]);
+                    synchronized (checkpoint) {
+                        done.putObject(String.valueOf(shard.index()))
+                            .put("messages", result[0])
+                            .put("bytes", result[1]);
+                        writeCheckpoint(directory, checkpoint);
+                    }
+                    return null;
+                }));
+            }
+
+            int failed = 0;
+            for (final var future : futures) {
+                try {
+                    future.get();
+                } catch (final ExecutionException e) {
+                    failed++;
+                    LOG.warn("Shard export failed", e.getCause());
+                }
+            }
+            final var summary = new ExportSummary(
+                shards,
+                skipped.get(),
+                failed,
+                messages.sum(),
+                bytes.sum(),
+                Duration.ofNanos(System.nanoTime() - start)
+            );
+            LOG.info("Exported {}: {}", account, summary);
+            return summary;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // whole seconds for the $filter, the end of one shard is the start of the next
+    private static Instant boundary(final Instant from, final Duration step, final int index) {
+        if (index == 0) {
+            return from;
+        }
+        final var boundary = from.plus(step.multipliedBy(index)).truncatedTo(ChronoUnit.SECONDS);
+        return boundary.isBefore(from) ? from : boundary;
+    }
+
+    // returns {messages, bytes written}
+    private long[] exportShard(final String account, final Shard shard, final Format format, final Path directory) throws Exception {
+        final var target = directory.resolve(String.format("shard-%04d.%s", shard.index(), format.extension));
+        final var part   = directory.resolve(target.getFileName() + ".part");
+        final var start  = System.nanoTime();
+        long      count;
+        try (final var out = new BufferedOutputStream(Files.newOutputStream(part), 1 << 16)) {
+            count = switch (format) {
+                case NDJSON -> writeNdjson(account, shard, out);
+                case MIME -> writeMime(account, shard, out);
+            };
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        final var size = Files.size(target);
+        LOG.info("Shard {} [{}, {}): {} messages, {} bytes in {} ms",
+                 shard.index(), shard.from(), shard.to(), count, size, (System.nanoTime() - start) / 1_000_000);
+        return new long[]{count, size};
+    }
+
+    private long writeNdjson(final String account, final Shard shard, final OutputStream out) throws Exception {
+        long count = 0;
+        try (final var gzip = new GZIPOutputStream(out, 1 << 16);
+             final var messages = server.streamMessageNodes(account, shard.from(), shard.to(), null, true, pageSize)) {
+            final var iterator = messages.iterator();
+            while (iterator.hasNext()) {
+                MAPPER.writeValue(gzip, iterator.next());
+                gzip.write('\n');
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private long writeMime(final String account, final Shard shard, final OutputStream out) throws Exception {
+        long count = 0;
+        // bodies are requested a few messages ahead and written in order
+        final var pending = new ArrayDeque<Pending>();
+        try (final var zip = new ZipOutputStream(out);
+             final var messages = server.streamMessageNodes(account, shard.from(), shard.to(), "id,receivedDateTime", false, pageSize)) {
+            final var iterator = messages.iterator();
+            try {
+                while (iterator.hasNext() || !pending.isEmpty()) {
+                    while (iterator.hasNext() && pending.size() < MIME_READ_AHEAD) {
+                        final var id = iterator.next().path("id").asText();
+                        pending.add(new Pending(id, server.openMessageAsync(account, id)));
+                    }
+                    final var next = pending.poll();
+                    try (final var content = next.content().get()) {
+                        zip.putNextEntry(new ZipEntry(next.id().replaceAll("[\\\\/:*?\"<>|]", "_") + ".eml"));
+                        content.transferTo(zip);
+                        zip.closeEntry();
+                    }
+                    count++;
+                }
+            } finally {
+                for (final var open : pending) {
+                    open.content().thenAccept(MailboxExporter::closeQuietly);
+                }
+            }
+        }
+        return count;
+    }
+
+    private record Pending(String id, CompletableFuture<InputStream> content) {
+
+    }
+
+    private static void closeQuietly(final InputStream in) {
+        try {
+            in.close();
+        } catch (final IOException e) {
+            LOG.debug("Can not close message content", e);
+        }
+    }
+
+    private static ObjectNode loadCheckpoint(
+        final Path directory,
+        final String account,
+        final Instant from,
+        final Instant to,
+        final int shards,
+        final Format format
+    ) throws IOException {
+        final var expected = MAPPER.createObjectNode()
+                                   .put("account", account)
+                                   .put("from", from.toString())
+                                   .put("to", to.toString())
+                                   .put("shards", shards)
+                                   .put("format", format.name());
+        final var file = directory.resolve(CHECKPOINT);
+        if (Files.exists(file)) {
+            final var checkpoint = (ObjectNode) MAPPER.readTree(file.toFile());
+            final var previous   = checkpoint.deepCopy();
+            previous.remove("done");
+            if (!previous.equals(expected)) {
+                throw new IllegalStateException("Directory holds a different export: " + previous);
+            }
+            LOG.info("Resuming export, {} of {} shards done", checkpoint.path("done").size(), shards);
+            return checkpoint;
+        }
+        expected.putObject("done");
+        writeCheckpoint(directory, expected);
+        return expected;
+    }
+
+    private static void writeCheckpoint(final Path directory, final ObjectNode checkpoint) throws IOException {
+        final var tmp = directory.resolve(CHECKPOINT + ".tmp");
+        MAPPER.writerWithDefaultPrettyPrinter().writeValue(tmp.toFile(), checkpoint);
+        Files.move(tmp, directory.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
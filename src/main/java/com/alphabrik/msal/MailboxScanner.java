@@ -0,0 +1,75 @@
+package com.alphabrik.msal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Walks many mailboxes with a fixed number of workers sharing one {@link MailServer},
+ * so threads scale with the worker count and not with the number of mailboxes.
+ */
+public class MailboxScanner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MailboxScanner.class);
+
+    @FunctionalInterface
+    public interface MailboxVisitor {
+
+        void visit(MailServer server, String account) throws Exception;
+    }
+
+    private final MailServer server;
+    private final int        workers;
+
+    public MailboxScanner(final MailServer server, final int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be positive: " + workers);
+        }
+        this.server = server;
+        this.workers = workers;
+    }
+
+    public MailboxScanner(final MailServer server) {
+        this(server, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Visits every account and waits until all are done. A failing account does not stop the others.
+     * Returns the failures by account, empty if all succeeded.
+     */
+    public Map<String, Exception> scan(final Collection<String> accounts, final MailboxVisitor visitor) throws InterruptedException {
+        final var executor = Executors.newFixedThreadPool(workers);
+        try {
+            final var futures = new LinkedHashMap<String, Future<?>>();
+            for (final var account : accounts) {
+                futures.put(account, executor.submit(() -> {
+                    final var start = System.nanoTime();
+                    visitor.visit(server, account);
+                    LOG.debug("Scanned {} in {} ms", account, (System.nanoTime() - start) / 1_000_000);
+                    return null;
+                }));
+            }
+
+            final var failures = new LinkedHashMap<String, Exception>();
+            for (final var entry : futures.entrySet()) {
+                try {
+                    entry.getValue().get();
+                } catch (final ExecutionException e) {
+                    LOG.warn("Can not scan {}", entry.getKey(), e.getCause());
+                    failures.put(entry.getKey(), e.getCause() instanceof final Exception cause ? cause : e);
+                }
+            }
+            LOG.info("Scanned {} mailboxes, {} failed", futures.size(), failures.size());
+            return failures;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.alphabrik.msal;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.StringJoiner;
+import java.util.stream.Collectors;
+
+/**
+ * The OData query options of a message list request: {@code $select}, {@code $filter}, {@code $orderby},
+ * {@code $top} and {@code $search}. Instances are immutable, every option returns a copy.
+ * <pre>
+ * MessageQuery.of(MessageState.class).filter("isRead eq false").top(500)
+ * </pre>
+ * Graph does not combine {@code $search} with {@code $filter} or {@code $orderby} on messages, search results come
+ * by relevance.
+ */
+public final class MessageQuery {
+
+    // Graph returns at most 1000 messages per page
+    private static final int MAX_TOP = 1000;
+
+    private final String select;
+    private final String filter;
+    private final String orderBy;
+    private final int    top;
+    private final String search;
+
+    private MessageQuery(final String select, final String filter, final String orderBy, final int top, final String search) {
+        if (search != null && (filter != null || orderBy != null)) {
+            throw new IllegalArgumentException("$search can not be combined with $filter or $orderby!");
+        }
+        if (top < 0 || top > MAX_TOP) {
+            throw new IllegalArgumentException("$top must be between 1 and " + MAX_TOP + ", or 0 for the Graph default: " + top);
+        }
+        this.select = select;
+        this.filter = filter;
+        this.orderBy = orderBy;
+        this.top = top;
+        this.search = search;
+    }
+
+    /**
+     * All properties Graph returns by default.
+     */
+    public static MessageQuery all() {
+        return new MessageQuery(null, null, null, 0, null);
+    }
+
+    public static MessageQuery select(final String... fields) {
+        return new MessageQuery(String.join(",", fields), null, null, 0, null);
+    }
+
+    /**
+     * Selects the properties named like the components of {@code type}, so a record with just {@code id} and
+     * {@code isRead} receives nothing else.
+     */
+    public static MessageQuery of(final Class<? extends Record> type) {
+        return new MessageQuery(
+            Arrays.stream(type.getRecordComponents()).map(component -> component.getName()).collect(Collectors.joining(",")),
+            null,
+            null,
+            0,
+            null
+        );
+    }
+
+    public MessageQuery filter(final String filter) {
+        return new MessageQuery(select, filter, orderBy, top, search);
+    }
+
+    public MessageQuery orderBy(final String orderBy) {
+        return new MessageQuery(select, filter, orderBy, top, search);
+    }
+
+    /**
+     * Page size, 0 for the Graph default of 10.
+     */
+    public MessageQuery top(final int top) {
+        return new MessageQuery(select, filter, orderBy, top, search);
+    }
+
+    /**
+     * Searches subject, body and addresses; unquoted terms are quoted.
+     */
+    public MessageQuery search(final String search) {
+        final var quoted = search == null || search.startsWith("\"") ? search : "\"" + search.replace("\"", "\\\"") + "\"";
+        return new MessageQuery(select, filter, orderBy, top, quoted);
+    }
+
+    String toQueryString() {
+        final var query = new StringJoiner("&");
+        append(query, "$select", select);
+        append(query, "$filter", filter);
+        append(query, "$orderby", orderBy);
+        append(query, "$top", top > 0 ? String.valueOf(top) : null);
+        append(query, "$search", search);
+        return query.toString();
+    }
+
+    private static void append(final StringJoiner query, final String option, final String value) {
+        if (value != null && !value.isBlank()) {
+            query.add(option + "=" + URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20").replace("%2C", ","));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toQueryString();
+    }
+}
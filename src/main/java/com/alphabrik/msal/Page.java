@@ -0,0 +1,10 @@
+package com.alphabrik.msal;
+
+import java.util.List;
+
+record Page<T>(
+    List<T> items,
+    String nextLink
+) {
+
+}
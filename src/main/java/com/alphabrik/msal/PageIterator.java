@@ -0,0 +1,74 @@
+package com.alphabrik.msal;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterates over all items of a paged Graph collection by following {@code @odata.nextLink}.
+ * The next page is requested as soon as the current one arrives, so it is usually
+ * already there when the caller is done with the current page.
+ */
+class PageIterator<T> implements Iterator<T>, AutoCloseable {
+
+    private final Function<URI, CompletableFuture<Page<T>>> fetcher;
+
+    private Iterator<T>                current = Collections.emptyIterator();
+    private CompletableFuture<Page<T>> next;
+
+    PageIterator(final URI first, final Function<URI, CompletableFuture<Page<T>>> fetcher) {
+        this.fetcher = fetcher;
+        this.next = fetcher.apply(first);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext() && next != null) {
+            final var page = await(next);
+            next = page.nextLink() != null ? fetcher.apply(URI.create(page.nextLink())) : null;
+            current = page.items().iterator();
+        }
+        return current.hasNext();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    @Override
+    public void close() {
+        if (next != null) {
+            next.cancel(true);
+            next = null;
+        }
+        current = Collections.emptyIterator();
+    }
+
+    Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                            .onClose(this::close);
+    }
+
+    private static <T> Page<T> await(final CompletableFuture<Page<T>> future) {
+        try {
+            return future.join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof final RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.alphabrik.msal;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Parsed responses of GET requests by URI together with their ETag, revalidated with {@code If-None-Match}.
+ * Entries are tagged with the mailbox and, for requests below a single message, the message id so that
+ * changes made through {@link MailServer} can drop them. At most {@code maxEntries} are kept, least recently used
+ * entries are dropped first.
+ */
+class ResponseCache {
+
+    record Entry(String etag, Object value, String account, String messageId) {
+
+    }
+
+    private final int              maxEntries;
+    private final Map<URI, Entry> entries;
+
+    ResponseCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<URI, Entry> eldest) {
+                return size() > ResponseCache.this.maxEntries;
+            }
+        };
+    }
+
+    synchronized Entry get(final URI uri) {
+        return entries.get(uri);
+    }
+
+    synchronized void put(final URI uri, final Entry entry) {
+        if (maxEntries > 0 && entry.etag() != null) {
+            entries.put(uri, entry);
+        }
+    }
+
+    /**
+     * Drops the entries a change of {@code messageId} can affect: the message lists of the mailbox and the
+     * responses below that message.
+     */
+    synchronized void invalidate(final String account, final String messageId) {
+        entries.values().removeIf(entry -> entry.account().equals(account)
+                                           && (entry.messageId() == null || Objects.equals(entry.messageId(), messageId)));
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+}
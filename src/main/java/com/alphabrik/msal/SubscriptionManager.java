@@ -0,0 +1,314 @@
+package com.alphabrik.msal;
+
+import com.alphabrik.msal.model.ChangeNotification;
+import com.alphabrik.msal.model.ChangeNotifications;
+import com.alphabrik.msal.model.Message;
+import com.alphabrik.msal.model.Subscription;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives Graph change notifications for new, changed and deleted messages instead of polling.
+ * <p>
+ * An embedded HTTP listener answers the validation request Graph sends when a subscription is created and accepts
+ * notifications, checking their {@code clientState}. Only the notified messages are fetched and handed to the
+ * {@link MessageListener}. Subscriptions are renewed in the background before they expire and deleted on
+ * {@link #close()}. Graph must be able to reach {@code notificationUrl}, which has to end up at the listener.
+ */
+public class SubscriptionManager implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SubscriptionManager.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().registerModule(new JavaTimeModule())
+                                                                 .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    // message subscriptions live at most 10080 minutes
+    private static final Duration DEFAULT_LIFETIME = Duration.ofDays(2);
+    private static final Duration RETRY_DELAY      = Duration.ofMinutes(1);
+
+    public interface MessageListener {
+
+        void onMessage(String account, Message message) throws Exception;
+
+        default void onDeleted(final String account, final String messageId) throws Exception {
+        }
+    }
+
+    private record Registration(String account, String subscriptionId, Instant expiration) {
+
+    }
+
+    private record Change(String account, String messageId, boolean deleted) {
+
+    }
+
+    private final MailServer      server;
+    private final String          notificationUrl;
+    private final MessageListener listener;
+    private final Duration        lifetime;
+    private final String          clientState = UUID.randomUUID().toString();
+    private final HttpServer      httpServer;
+    private final ExecutorService executor    = Executors.newCachedThreadPool();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final var thread = new Thread(runnable, "subscription-renewal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // subscription id -> registration
+    private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+
+    // subscription id -> notifications that came before createSubscription returned, guarded by itself
+    private final Map<String, List<ChangeNotification>> early = new HashMap<>();
+    // subscriptions being created, early notifications are kept only while there are any
+    private       int                                   pending;
+
+    public SubscriptionManager(
+        final MailServer server,
+        final InetSocketAddress listenAddress,
+        final String notificationUrl,
+        final MessageListener listener
+    ) throws IOException {
+        this(server, listenAddress, notificationUrl, listener, DEFAULT_LIFETIME);
+    }
+
+    public SubscriptionManager(
+        final MailServer server,
+        final InetSocketAddress listenAddress,
+        final String notificationUrl,
+        final MessageListener listener,
+        final Duration lifetime
+    ) throws IOException {
+        this.server = server;
+        this.notificationUrl = notificationUrl;
+        this.listener = listener;
+        this.lifetime = lifetime;
+        final var path = URI.create(notificationUrl).getPath();
+        httpServer = HttpServer.create(listenAddress, 0);
+        httpServer.createContext(path == null || path.isEmpty() ? "/" : path, this::handle);
+        httpServer.setExecutor(executor);
+        httpServer.start();
+        LOG.info("Listening for notifications on {}", httpServer.getAddress());
+    }
+
+    /**
+     * Port the listener is bound to, useful when it was started on port 0.
+     */
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    /**
+     * Creates a subscription for the mailbox. Graph validates {@code notificationUrl} before this returns. Notifications
+     * Graph sends before its response arrives are dispatched once the subscription is known.
+     */
+    public String subscribe(final String account) throws Exception {
+        synchronized (early) {
+            pending++;
+        }
+        final Subscription             subscription;
+        final List<ChangeNotification> notifications;
+        try {
+            subscription = server.createSubscription(account, notificationUrl, clientState, Instant.now().plus(lifetime));
+            synchronized (early) {
+                register(new Registration(account, subscription.id(), subscription.expirationDateTime()));
+                notifications = early.remove(subscription.id());
+            }
+        } finally {
+            synchronized (early) {
+                if (--pending == 0) {
+                    early.clear();
+                }
+            }
+        }
+        LOG.info("Subscribed to {}: {}, expires {}", account, subscription.id(), subscription.expirationDateTime());
+        if (notifications != null) {
+            LOG.debug("Dispatching {} notifications that came before {}", notifications.size(), subscription.id());
+            dispatch(notifications);
+        }
+        return subscription.id();
+    }
+
+    public void unsubscribe(final String account) throws Exception {
+        for (final var registration : List.copyOf(registrations.values())) {
+            if (registration.account().equals(account)) {
+                registrations.remove(registration.subscriptionId());
+                server.deleteSubscription(account, registration.subscriptionId());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        for (final var registration : List.copyOf(registrations.values())) {
+            try {
+                server.deleteSubscription(registration.account(), registration.subscriptionId());
+            } catch (final Exception e) {
+                LOG.warn("Can not delete subscription {}", registration.subscriptionId(), e);
+            }
+        }
+        registrations.clear();
+        httpServer.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void register(final Registration registration) {
+        registrations.put(registration.subscriptionId(), registration);
+        // renew when a quarter of the lifetime is left
+        final var renewAt = registration.expiration().minus(lifetime.dividedBy(4));
+        scheduleRenewal(registration, Duration.between(Instant.now(), renewAt));
+    }
+
+    private void scheduleRenewal(final Registration registration, final Duration delay) {
+        scheduler.schedule(() -> renew(registration), Math.max(0, delay.toMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    private void renew(final Registration registration) {
+        if (!registrations.containsKey(registration.subscriptionId())) {
+            return;
+        }
+        try {
+            final var renewed = server.renewSubscription(
+                registration.account(),
+                registration.subscriptionId(),
+                Instant.now().plus(lifetime)
+            );
+            register(new Registration(registration.account(), registration.subscriptionId(), renewed.expirationDateTime()));
+            LOG.debug("Renewed {} until {}", registration.subscriptionId(), renewed.expirationDateTime());
+        } catch (final Exception renewFailed) {
+            LOG.warn("Can not renew subscription {}, creating a new one", registration.subscriptionId(), renewFailed);
+            try {
+                registrations.remove(registration.subscriptionId());
+                subscribe(registration.account());
+            } catch (final Exception e) {
+                LOG.warn("Can not subscribe to {}, retrying in {}", registration.account(), RETRY_DELAY, e);
+                registrations.put(registration.subscriptionId(), registration);
+                scheduleRenewal(registration, RETRY_DELAY);
+            }
+        }
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try (exchange) {
+            final var validationToken = validationToken(exchange.getRequestURI().getRawQuery());
+            if (validationToken != null) {
+                // Graph expects the token echoed as plain text within 10 seconds
+                final var bytes = validationToken.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain");
+                exchange.sendResponseHeaders(200, bytes.length);
+                exchange.getResponseBody().write(bytes);
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            final ChangeNotifications notifications;
+            try {
+                notifications = MAPPER.readValue(exchange.getRequestBody(), ChangeNotifications.class);
+            } catch (final IOException e) {
+                LOG.warn("Can not read notification", e);
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            // acknowledge first, Graph retries notifications that are not answered within 3 seconds
+            exchange.sendResponseHeaders(202, -1);
+            dispatch(notifications.value());
+        }
+    }
+
+    private void dispatch(final List<ChangeNotification> notifications) {
+        // one fetch per message, even if it was created and updated in the same batch
+        final var changes = new LinkedHashMap<String, Change>();
+        for (final var notification : notifications) {
+            if (!clientState.equals(notification.clientState())) {
+                LOG.warn("Ignoring notification with unknown clientState for {}", notification.subscriptionId());
+                continue;
+            }
+            final Registration registration;
+            synchronized (early) {
+                registration = registrations.get(notification.subscriptionId());
+                // the clientState is ours, so it may be a subscription that is still being created
+                if (registration == null && pending > 0 && notification.messageId() != null) {
+                    early.computeIfAbsent(notification.subscriptionId(), id -> new ArrayList<>()).add(notification);
+                    continue;
+                }
+            }
+            if (registration == null || notification.messageId() == null) {
+                LOG.debug("Ignoring notification for {}", notification.subscriptionId());
+                continue;
+            }
+            final var change = new Change(registration.account(), notification.messageId(), "deleted".equals(notification.changeType()));
+            changes.merge(change.account() + "/" + change.messageId(), change, (previous, next) -> next.deleted() ? next : previous);
+        }
+        for (final var change : changes.values()) {
+            if (change.deleted()) {
+                executor.execute(() -> deliver(() -> listener.onDeleted(change.account(), change.messageId())));
+                continue;
+            }
+            try {
+                server.getMessageAsync(change.account(), change.messageId())
+                      .whenCompleteAsync((message, error) -> {
+                          if (error != null) {
+                              LOG.warn("Can not fetch message {}", change.messageId(), error);
+                          } else {
+                              deliver(() -> listener.onMessage(change.account(), message));
+                          }
+                      }, executor);
+            } catch (final Exception e) {
+                LOG.warn("Can not fetch message {}", change.messageId(), e);
+            }
+        }
+    }
+
+    private interface Delivery {
+
+        void run() throws Exception;
+    }
+
+    private static void deliver(final Delivery delivery) {
+        try {
+            delivery.run();
+        } catch (final Exception e) {
+            LOG.warn("Message listener failed", e);
+        }
+    }
+
+    private static String validationToken(final String rawQuery) {
+        if (rawQuery == null) {
+            return null;
+        }
+        for (final var parameter : rawQuery.split("&")) {
+            if (parameter.startsWith("validationToken=")) {
+                return URLDecoder.decode(parameter.substring("validationToken=".length()), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+}
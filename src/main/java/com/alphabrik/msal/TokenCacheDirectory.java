@@ -0,0 +1,119 @@
+package com.alphabrik.msal;
+
+import com.microsoft.aad.msal4j.ITokenCacheAccessAspect;
+import com.microsoft.aad.msal4j.ITokenCacheAccessContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Keeps the msal token cache and the AAD instance discovery metadata in a directory, so a new process reuses a
+ * token that is still valid instead of requesting one and knows the authority without asking AAD. The token cache
+ * holds access tokens, both files are readable by their owner only. A file that can not be read or written is
+ * logged and treated as missing.
+ */
+class TokenCacheDirectory implements ITokenCacheAccessAspect {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenCacheDirectory.class);
+
+    private static final String   TOKENS             = "token-cache.json";
+    private static final String   INSTANCE_DISCOVERY = "instance-discovery.json";
+    private static final Duration DISCOVERY_MAX_AGE  = Duration.ofDays(1);
+
+    private final Path directory;
+
+    TokenCacheDirectory(final Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    @Override
+    public void beforeCacheAccess(final ITokenCacheAccessContext context) {
+        final var file = directory.resolve(TOKENS);
+        try {
+            if (Files.exists(file)) {
+                context.tokenCache().deserialize(Files.readString(file));
+            }
+        } catch (final Exception e) {
+            LOG.warn("Can not read token cache {}", file, e);
+        }
+    }
+
+    @Override
+    public void afterCacheAccess(final ITokenCacheAccessContext context) {
+        if (context.hasCacheChanged()) {
+            final var file = directory.resolve(TOKENS);
+            try {
+                write(file, context.tokenCache().serialize());
+            } catch (final IOException e) {
+                LOG.warn("Can not write token cache {}", file, e);
+            }
+        }
+    }
+
+    /**
+     * The instance discovery response of AAD for the tenant, as msal4j fetches it before its first token request.
+     * It is stored for a day; returns null if it is neither stored nor available, msal4j then asks AAD itself.
+     */
+    String instanceDiscovery(final String authority, final String tenant) {
+        final var file = directory.resolve(INSTANCE_DISCOVERY);
+        try {
+            if (Files.exists(file) && Files.getLastModifiedTime(file).toInstant().isAfter(Instant.now().minus(DISCOVERY_MAX_AGE))) {
+                return Files.readString(file);
+            }
+            final var uri = new URI(String.format(
+                "%s/common/discovery/instance?api-version=1.1&authorization_endpoint=%s",
+                authority,
+                URLEncoder.encode(String.format("%s/%s/oauth2/v2.0/authorize", authority, tenant), StandardCharsets.UTF_8)
+            ));
+            final var response = HttpClient.newHttpClient()
+                                           .send(HttpRequest.newBuilder(uri).GET().build(), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200 || !response.body().contains("\"metadata\"")) {
+                LOG.warn("Can not get instance discovery metadata! {}", response.statusCode());
+                return null;
+            }
+            write(file, response.body());
+            return response.body();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (final Exception e) {
+            LOG.warn("Can not get instance discovery metadata {}", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Forgets the stored discovery metadata, e.g. after msal4j rejected it.
+     */
+    void invalidateInstanceDiscovery() {
+        try {
+            Files.deleteIfExists(directory.resolve(INSTANCE_DISCOVERY));
+        } catch (final IOException e) {
+            LOG.warn("Can not delete instance discovery metadata", e);
+        }
+    }
+
+    private void write(final Path file, final String content) throws IOException {
+        // on POSIX systems temp files are created readable and writable by their owner only
+        final var tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            Files.writeString(tmp, content);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
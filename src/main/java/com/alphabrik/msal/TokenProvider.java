@@ -0,0 +1,170 @@
+package com.alphabrik.msal;
+
+import com.alphabrik.msal.metrics.MailMetrics;
+import com.alphabrik.msal.metrics.Operation;
+import com.microsoft.aad.msal4j.ClientCredentialFactory;
+import com.microsoft.aad.msal4j.ClientCredentialParameters;
+import com.microsoft.aad.msal4j.ConfidentialClientApplication;
+import com.microsoft.aad.msal4j.IAuthenticationResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a Graph access token valid for the lifetime of the process. The token is refreshed in the background
+ * {@link #REFRESH_MARGIN} before it expires, so callers keep using the current token meanwhile; only an already
+ * expired token makes callers wait, and then all of them share a single refresh.
+ */
+public class TokenProvider implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenProvider.class);
+
+    private static final Duration REFRESH_MARGIN = Duration.ofMinutes(5);
+    private static final Duration RETRY_DELAY    = Duration.ofSeconds(30);
+
+    private static final Set<String> SCOPES = Collections.singleton("https://graph.microsoft.com/.default");
+
+    private final Configuration            config;
+    private final MailMetrics              metrics;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final var thread = new Thread(runnable, "token-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile ConfidentialClientApplication            app;
+    private volatile IAuthenticationResult                    current;
+    private          CompletableFuture<IAuthenticationResult> refreshing;
+    private          ScheduledFuture<?>                       scheduled;
+
+    public TokenProvider(final Configuration config) {
+        this(config, MailMetrics.NOOP);
+    }
+
+    public TokenProvider(final Configuration config, final MailMetrics metrics) {
+        this.config = config;
+        this.metrics = metrics;
+    }
+
+    public void connect() throws Exception {
+        if (app == null) {
+            app = build();
+        }
+        final var result = acquire(ClientCredentialParameters.builder(SCOPES).build()).get();
+        LOG.debug("Token received: {}, expires {}", result.accessToken(), result.expiresOnDate());
+        current = result;
+        scheduleRefresh(result);
+    }
+
+    /**
+     * With a {@code tokenCacheDir} the msal token cache outlives the process, so {@link #connect()} returns a
+     * stored token while it is valid without a request, and AAD instance discovery is read from the same directory.
+     */
+    private ConfidentialClientApplication build() throws Exception {
+        final var builder = ConfidentialClientApplication.builder(
+                                                             config.getClientId(),
+                                                             ClientCredentialFactory.createFromSecret(config.getClientSecret())
+                                                         )
+                                                         .authority(String.format("%s/%s", config.getAuthority(), config.getTenant()));
+        final var cacheDir = config.getTokenCacheDir();
+        if (cacheDir == null) {
+            return builder.build();
+        }
+        final var cache     = new TokenCacheDirectory(cacheDir);
+        final var discovery = cache.instanceDiscovery(config.getAuthority(), config.getTenant());
+        builder.setTokenCacheAccessAspect(cache);
+        if (discovery != null) {
+            try {
+                builder.aadInstanceDiscoveryResponse(discovery);
+            } catch (final RuntimeException e) {
+                LOG.warn("Stored instance discovery metadata rejected, discovering again", e);
+                cache.invalidateInstanceDiscovery();
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns a valid access token, or the configured {@code access_token} if {@link #connect()} was not called.
+     */
+    public String getToken() throws Exception {
+        final var result = current;
+        if (result == null) {
+            return config.getToken();
+        }
+        if (expiresIn(result).isNegative() || expiresIn(result).isZero()) {
+            LOG.info("Token expired, waiting for refresh");
+            try {
+                return refresh().join().accessToken();
+            } catch (final CompletionException e) {
+                throw e.getCause() instanceof final Exception cause ? cause : e;
+            }
+        }
+        return result.accessToken();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private synchronized CompletableFuture<IAuthenticationResult> refresh() {
+        if (refreshing != null) {
+            return refreshing;
+        }
+        // skip msal's cache, it would hand out the token we are about to replace
+        final var future = acquire(ClientCredentialParameters.builder(SCOPES).skipCache(true).build());
+        // stored before the callback is attached, which runs right here if the future is already complete
+        refreshing = future;
+        future.whenComplete((result, e) -> {
+            synchronized (this) {
+                if (refreshing == future) {
+                    refreshing = null;
+                }
+            }
+            if (e != null) {
+                LOG.warn("Can not refresh token, retrying in {}", RETRY_DELAY, e);
+                schedule(RETRY_DELAY.toMillis());
+            } else {
+                LOG.debug("Token refreshed, expires {}", result.expiresOnDate());
+                current = result;
+                scheduleRefresh(result);
+            }
+        });
+        return future;
+    }
+
+    private CompletableFuture<IAuthenticationResult> acquire(final ClientCredentialParameters parameters) {
+        final var start = System.nanoTime();
+        metrics.started(Operation.CONNECT);
+        // msal does not expose the HTTP status, 200 stands for a token and 0 for a failure
+        return app.acquireToken(parameters)
+                  .whenComplete((result, e) -> metrics.completed(Operation.CONNECT, e == null ? 200 : 0, System.nanoTime() - start));
+    }
+
+    private void scheduleRefresh(final IAuthenticationResult result) {
+        schedule(expiresIn(result).minus(REFRESH_MARGIN).toMillis());
+    }
+
+    // a single refresh is pending at a time, a new one (e.g. from connecting again) replaces it
+    private synchronized void schedule(final long delayMillis) {
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        scheduled = scheduler.schedule(this::refresh, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+    }
+
+    private static Duration expiresIn(final IAuthenticationResult result) {
+        return Duration.between(Instant.now(), result.expiresOnDate().toInstant());
+    }
+}
@@ -0,0 +1,207 @@
+package com.alphabrik.msal.extract;
+
+import com.alphabrik.msal.MailServer;
+import com.alphabrik.msal.model.Attachment;
+import com.alphabrik.msal.model.Extraction;
+import com.alphabrik.msal.model.ExtractorSummary;
+import com.alphabrik.msal.model.ScanSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Runs {@link Extractor}s over the attachments of many messages. The attachments of the next messages are listed
+ * ahead, only those an extractor accepts by their metadata are downloaded, and their content is extracted on a fixed
+ * number of workers while the next ones download. A byte budget bounds the content held at once, downloading or
+ * waiting for a worker: a download starts only when finished attachments have given back enough of it, and no
+ * further messages are listed meanwhile.
+ */
+public class AttachmentScanner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AttachmentScanner.class);
+
+    private static final int LISTINGS_AHEAD = 16;
+
+    private final MailServer      server;
+    private final List<Extractor> extractors;
+    private final int             workers;
+    private final int             maxBytesInFlight;
+
+    public AttachmentScanner(final MailServer server, final List<Extractor> extractors, final int workers, final int maxBytesInFlight) {
+        if (extractors.isEmpty()) {
+            throw new IllegalArgumentException("No extractors!");
+        }
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be positive: " + workers);
+        }
+        if (maxBytesInFlight < 1) {
+            throw new IllegalArgumentException("maxBytesInFlight must be positive: " + maxBytesInFlight);
+        }
+        this.server = server;
+        this.extractors = List.copyOf(extractors);
+        this.workers = workers;
+        this.maxBytesInFlight = maxBytesInFlight;
+    }
+
+    public AttachmentScanner(final MailServer server, final List<Extractor> extractors) {
+        this(server, extractors, Runtime.getRuntime().availableProcessors(), 64 << 20);
+    }
+
+    private record Listing(String messageId, CompletableFuture<List<Attachment>> attachments) {
+
+    }
+
+    private static final class Tally {
+
+        final Extractor extractor;
+        final LongAdder attachments = new LongAdder();
+        final LongAdder found       = new LongAdder();
+        final LongAdder failed      = new LongAdder();
+        final LongAdder bytes       = new LongAdder();
+        final LongAdder nanos       = new LongAdder();
+
+        Tally(final Extractor extractor) {
+            this.extractor = extractor;
+        }
+
+        ExtractorSummary summary() {
+            return new ExtractorSummary(extractor.name(), attachments.sum(), found.sum(), failed.sum(), bytes.sum(), Duration.ofNanos(nanos.sum()));
+        }
+    }
+
+    /**
+     * Scans the attachments of every message and waits until all are done; {@code results} is called from the
+     * workers for everything found. A failing message, download or extractor does not stop the others.
+     * An attachment larger than the byte budget takes all of it and is scanned alone.
+     */
+    public ScanSummary scan(final String account, final Iterator<String> messageIds, final Consumer<Extraction> results) throws InterruptedException {
+        final var executor    = Executors.newFixedThreadPool(workers);
+        final var budget      = new Semaphore(maxBytesInFlight);
+        final var tallies     = extractors.stream().map(Tally::new).toList();
+        final var listings    = new ArrayDeque<Listing>();
+        final var attachments = new LongAdder();
+        final var bytes       = new LongAdder();
+        final var failed      = new LongAdder();
+        final var start       = System.nanoTime();
+        long      messages    = 0;
+        long      skipped     = 0;
+
+        try {
+            while (messageIds.hasNext() || !listings.isEmpty()) {
+                while (listings.size() < LISTINGS_AHEAD && messageIds.hasNext()) {
+                    final var id = messageIds.next();
+                    listings.add(new Listing(id, list(account, id)));
+                }
+                final var listing = listings.remove();
+                final List<Attachment> listed;
+                try {
+                    listed = listing.attachments().join();
+                } catch (final CompletionException e) {
+                    failed.increment();
+                    LOG.warn("Can not list attachments of {}", listing.messageId(), cause(e));
+                    continue;
+                }
+                messages++;
+
+                for (final var attachment : listed) {
+                    // item and reference attachments have no content
+                    final var accepting = attachment.isFile()
+                                          ? tallies.stream().filter(tally -> tally.extractor.accepts(attachment)).toList()
+                                          : List.<Tally>of();
+                    if (accepting.isEmpty()) {
+                        skipped++;
+                        continue;
+                    }
+                    final var cost = (int) Math.min(Math.max(1, attachment.size()), maxBytesInFlight);
+                    budget.acquire(cost);
+                    content(account, listing.messageId(), attachment)
+                        .thenAcceptAsync(withContent -> {
+                            final var content = withContent.contentBytes() != null ? withContent.contentBytes() : new byte[0];
+                            extract(listing.messageId(), withContent, content, accepting, results);
+                            attachments.increment();
+                            bytes.add(content.length);
+                        }, executor)
+                        .whenComplete((ignored, error) -> {
+                            if (error != null) {
+                                failed.increment();
+                                LOG.warn("Can not scan {} of {}", attachment.name(), listing.messageId(), cause(error));
+                            }
+                            budget.release(cost);
+                        });
+                }
+            }
+            // all of the budget back means all attachments are done
+            budget.acquire(maxBytesInFlight);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return new ScanSummary(
+            messages,
+            attachments.sum(),
+            skipped,
+            failed.sum(),
+            bytes.sum(),
+            Duration.ofNanos(System.nanoTime() - start),
+            tallies.stream().map(Tally::summary).toList()
+        );
+    }
+
+    private CompletableFuture<List<Attachment>> list(final String account, final String messageId) {
+        try {
+            return server.listAttachmentsAsync(account, messageId);
+        } catch (final Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private CompletableFuture<Attachment> content(final String account, final String messageId, final Attachment attachment) {
+        try {
+            return server.getAttachmentContentAsync(account, messageId, attachment);
+        } catch (final Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private static void extract(
+        final String messageId,
+        final Attachment attachment,
+        final byte[] content,
+        final List<Tally> tallies,
+        final Consumer<Extraction> results
+    ) {
+        for (final var tally : tallies) {
+            final var begin = System.nanoTime();
+            String    value;
+            try {
+                value = tally.extractor.extract(attachment, content);
+            } catch (final Exception e) {
+                tally.failed.increment();
+                LOG.warn("{} failed on {} of {}", tally.extractor.name(), attachment.name(), messageId, e);
+                continue;
+            } finally {
+                tally.nanos.add(System.nanoTime() - begin);
+            }
+            tally.attachments.increment();
+            tally.bytes.add(content.length);
+            if (value != null) {
+                tally.found.increment();
+                results.accept(new Extraction(messageId, attachment.id(), attachment.name(), tally.extractor.name(), value));
+            }
+        }
+    }
+
+    private static Throwable cause(final Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+}
@@ -0,0 +1,153 @@
+package com.alphabrik.msal.extract;
+
+import com.alphabrik.msal.model.Attachment;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Finds something in the content of an attachment. Extractors run concurrently on many attachments and must not
+ * keep state between calls.
+ */
+public interface Extractor {
+
+    int MAX_MATCHES = 100;
+
+    String name();
+
+    /**
+     * Whether the attachment is worth downloading for this extractor, from its metadata alone.
+     */
+    default boolean accepts(final Attachment attachment) {
+        return true;
+    }
+
+    /**
+     * Returns what was found in the content, or null for nothing.
+     */
+    String extract(Attachment attachment, byte[] content) throws Exception;
+
+    /**
+     * This extractor restricted to the attachments that also meet {@code condition}.
+     */
+    default Extractor onlyIf(final Predicate<Attachment> condition) {
+        final var extractor = this;
+        return new Extractor() {
+
+            @Override
+            public String name() {
+                return extractor.name();
+            }
+
+            @Override
+            public boolean accepts(final Attachment attachment) {
+                return extractor.accepts(attachment) && condition.test(attachment);
+            }
+
+            @Override
+            public String extract(final Attachment attachment, final byte[] content) throws Exception {
+                return extractor.extract(attachment, content);
+            }
+        };
+    }
+
+    /**
+     * The hex encoded SHA-256 hash of the content.
+     */
+    static Extractor sha256() {
+        return new Extractor() {
+
+            @Override
+            public String name() {
+                return "sha256";
+            }
+
+            @Override
+            public String extract(final Attachment attachment, final byte[] content) throws Exception {
+                return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+            }
+        };
+    }
+
+    /**
+     * The distinct matches of {@code pattern}, comma separated, at most {@link #MAX_MATCHES}. The content is read as
+     * ISO-8859-1, one char per byte, so ASCII patterns match text in any ASCII compatible encoding without decoding it.
+     */
+    static Extractor regex(final Pattern pattern) {
+        return new Extractor() {
+
+            @Override
+            public String name() {
+                return "regex:" + pattern.pattern();
+            }
+
+            @Override
+            public String extract(final Attachment attachment, final byte[] content) {
+                final var matcher = pattern.matcher(new String(content, StandardCharsets.ISO_8859_1));
+                final var matches = new LinkedHashSet<String>();
+                while (matches.size() < MAX_MATCHES && matcher.find()) {
+                    matches.add(matcher.group());
+                }
+                return matches.isEmpty() ? null : String.join(",", matches);
+            }
+        };
+    }
+
+    /**
+     * Attachments of at most {@code bytes}, by the size Graph reports.
+     */
+    static Predicate<Attachment> maxSize(final long bytes) {
+        return attachment -> attachment.size() <= bytes;
+    }
+
+    /**
+     * Attachments of one of the content types, ignoring case; {@code text/*} matches all text types.
+     */
+    static Predicate<Attachment> contentTypes(final List<String> types) {
+        final var prefixes = types.stream().map(type -> type.trim().toLowerCase(Locale.ROOT).replaceFirst("\\*$", "")).toList();
+        return attachment -> {
+            if (attachment.contentType() == null) {
+                return false;
+            }
+            final var contentType = attachment.contentType().toLowerCase(Locale.ROOT);
+            return prefixes.stream().anyMatch(contentType::startsWith);
+        };
+    }
+
+    /**
+     * Parses the extractors {@code sha256} and {@code regex:<pattern>}, and the filters {@code maxSize:<bytes>} and
+     * {@code type:<contentType>[,<contentType>...]} which restrict all extractors.
+     */
+    static List<Extractor> parse(final List<String> specs) {
+        final var extractors = new ArrayList<Extractor>();
+        Predicate<Attachment> condition = attachment -> true;
+        for (final var spec : specs) {
+            final var separator = spec.indexOf(':');
+            final var name      = separator < 0 ? spec : spec.substring(0, separator);
+            final var argument  = separator < 0 ? null : spec.substring(separator + 1);
+            if (argument == null && List.of("regex", "maxSize", "type").contains(name)) {
+                throw new IllegalArgumentException("Missing argument of " + spec);
+            }
+            switch (name) {
+                case "sha256" -> extractors.add(sha256());
+                case "regex" -> extractors.add(regex(Pattern.compile(argument)));
+                case "maxSize" -> condition = condition.and(maxSize(Long.parseLong(argument)));
+                case "type" -> condition = condition.and(contentTypes(Arrays.asList(argument.split(","))));
+                default -> throw new IllegalArgumentException("Unknown extractor: " + spec);
+            }
+        }
+        if (extractors.isEmpty()) {
+            throw new IllegalArgumentException("No extractor in " + specs);
+        }
+        final var filter = condition;
+        return extractors.stream().map(extractor -> extractor.onlyIf(filter)).toList();
+    }
+}
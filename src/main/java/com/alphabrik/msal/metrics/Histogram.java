@@ -0,0 +1,89 @@
+package com.alphabrik.msal.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed buckets, lock-free to record.
+ */
+public class Histogram {
+
+    // upper bounds in seconds, as exported to Prometheus; the lowest ones resolve LAN and local test servers
+    static final double[] BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    private static final long[] BOUNDS = new long[BUCKETS.length];
+
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            BOUNDS[i] = (long) (BUCKETS[i] * 1e9);
+        }
+    }
+
+    // the last one counts values above all bounds
+    private final LongAdder[]     counts = new LongAdder[BUCKETS.length + 1];
+    private final LongAdder       sum    = new LongAdder();
+    private final LongAccumulator max    = new LongAccumulator(Long::max, 0);
+
+    public Histogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(final long nanos) {
+        int bucket = 0;
+        while (bucket < BOUNDS.length && nanos > BOUNDS[bucket]) {
+            bucket++;
+        }
+        counts[bucket].increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    public long count() {
+        long count = 0;
+        for (final var bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long sumNanos() {
+        return sum.sum();
+    }
+
+    public long maxNanos() {
+        return max.get();
+    }
+
+    /**
+     * Counts of values up to each bound in {@link #BUCKETS}, plus the total as the last element.
+     */
+    public long[] cumulativeCounts() {
+        final var cumulative = new long[counts.length];
+        long      running    = 0;
+        for (int i = 0; i < counts.length; i++) {
+            running += counts[i].sum();
+            cumulative[i] = running;
+        }
+        return cumulative;
+    }
+
+    /**
+     * Upper bound of the bucket containing the given quantile, in milliseconds, at most the maximum recorded.
+     */
+    public double quantileMillis(final double quantile) {
+        final var cumulative = cumulativeCounts();
+        final var total      = cumulative[cumulative.length - 1];
+        if (total == 0) {
+            return 0;
+        }
+        final var rank = (long) Math.ceil(quantile * total);
+        for (int i = 0; i < BUCKETS.length; i++) {
+            if (cumulative[i] >= rank) {
+                return Math.min(BUCKETS[i] * 1000, maxNanos() / 1e6);
+            }
+        }
+        return maxNanos() / 1e6;
+    }
+}
@@ -0,0 +1,37 @@
+package com.alphabrik.msal.metrics;
+
+/**
+ * Receives measurements of every Graph and AAD call. All methods default to no-ops, so an implementation only
+ * overrides what it records; {@link #NOOP} is used when no metrics are configured and {@code MailServer} then
+ * skips the measuring altogether.
+ */
+public interface MailMetrics {
+
+    MailMetrics NOOP = new MailMetrics() {
+    };
+
+    /**
+     * A call was issued; it counts as in flight until {@link #completed}.
+     */
+    default void started(final Operation operation) {
+    }
+
+    /**
+     * A call finished after {@code nanos}, including queueing and retries. {@code status} is the final HTTP status,
+     * 0 if no response was received.
+     */
+    default void completed(final Operation operation, final int status, final long nanos) {
+    }
+
+    /**
+     * Response body bytes received, reported once per response.
+     */
+    default void received(final Operation operation, final long bytes) {
+    }
+
+    /**
+     * Time spent binding a response body.
+     */
+    default void parsed(final Operation operation, final long nanos) {
+    }
+}
@@ -0,0 +1,62 @@
+package com.alphabrik.msal.metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * In-memory {@link MailMetrics}: latency and parse histograms, byte and status counters and in-flight gauges
+ * per {@link Operation}. Export them with {@link PrometheusExporter} or {@link #registerMBeans()}.
+ */
+public class MetricsRegistry implements MailMetrics {
+
+    private final OperationMetrics[] operations = new OperationMetrics[Operation.values().length];
+
+    public MetricsRegistry() {
+        for (final var operation : Operation.values()) {
+            operations[operation.ordinal()] = new OperationMetrics(operation);
+        }
+    }
+
+    public OperationMetrics get(final Operation operation) {
+        return operations[operation.ordinal()];
+    }
+
+    public List<OperationMetrics> all() {
+        return List.of(operations);
+    }
+
+    @Override
+    public void started(final Operation operation) {
+        operations[operation.ordinal()].started();
+    }
+
+    @Override
+    public void completed(final Operation operation, final int status, final long nanos) {
+        operations[operation.ordinal()].completed(status, nanos);
+    }
+
+    @Override
+    public void received(final Operation operation, final long bytes) {
+        operations[operation.ordinal()].received(bytes);
+    }
+
+    @Override
+    public void parsed(final Operation operation, final long nanos) {
+        operations[operation.ordinal()].parsed(nanos);
+    }
+
+    /**
+     * Registers one MXBean per operation as {@code com.alphabrik.msal:type=MailMetrics,operation=<name>}.
+     */
+    public void registerMBeans() throws JMException {
+        final var server = ManagementFactory.getPlatformMBeanServer();
+        for (final var metrics : operations) {
+            final var name = new ObjectName("com.alphabrik.msal:type=MailMetrics,operation=" + metrics.operation().value);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(metrics, name);
+            }
+        }
+    }
+}
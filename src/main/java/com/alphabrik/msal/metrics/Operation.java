@@ -0,0 +1,22 @@
+package com.alphabrik.msal.metrics;
+
+public enum Operation {
+    CONNECT("connect"),
+    GET_MESSAGES("getMessages"),
+    GET_MESSAGE("getMessage"),
+    GET_ATTACHMENTS("getAttachments"),
+    LIST_ATTACHMENTS("listAttachments"),
+    ATTACHMENT_CONTENT("attachmentContent"),
+    MESSAGE_CONTENT("messageContent"),
+    TOGGLE_READ("toggleRead"),
+    DELETE("delete"),
+    BATCH("batch"),
+    SYNC("sync"),
+    SUBSCRIPTION("subscription");
+
+    public final String value;
+
+    Operation(String value) {
+        this.value = value;
+    }
+}
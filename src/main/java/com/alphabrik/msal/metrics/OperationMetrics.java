@@ -0,0 +1,120 @@
+package com.alphabrik.msal.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one {@link Operation}.
+ */
+public class OperationMetrics implements OperationMetricsMXBean {
+
+    // HTTP status codes are below 600, 0 stands for no response
+    private static final int STATUS_CODES = 600;
+
+    private final Operation       operation;
+    private final Histogram       latency  = new Histogram();
+    private final Histogram       parsing  = new Histogram();
+    private final AtomicLong      inFlight = new AtomicLong();
+    private final LongAdder       bytes    = new LongAdder();
+    private final AtomicLongArray statuses = new AtomicLongArray(STATUS_CODES);
+
+    OperationMetrics(final Operation operation) {
+        this.operation = operation;
+    }
+
+    public Operation operation() {
+        return operation;
+    }
+
+    public Histogram latency() {
+        return latency;
+    }
+
+    public Histogram parsing() {
+        return parsing;
+    }
+
+    void started() {
+        inFlight.incrementAndGet();
+    }
+
+    void completed(final int status, final long nanos) {
+        inFlight.decrementAndGet();
+        latency.record(nanos);
+        statuses.incrementAndGet(status >= 0 && status < STATUS_CODES ? status : 0);
+    }
+
+    void received(final long count) {
+        bytes.add(count);
+    }
+
+    void parsed(final long nanos) {
+        parsing.record(nanos);
+    }
+
+    @Override
+    public long getCount() {
+        return latency.count();
+    }
+
+    @Override
+    public long getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getErrors() {
+        long errors = statuses.get(0);
+        for (int status = 400; status < STATUS_CODES; status++) {
+            errors += statuses.get(status);
+        }
+        return errors;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytes.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        final var count = latency.count();
+        return count == 0 ? 0 : latency.sumNanos() / 1e6 / count;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return latency.quantileMillis(0.5);
+    }
+
+    @Override
+    public double getP99Millis() {
+        return latency.quantileMillis(0.99);
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return latency.maxNanos() / 1e6;
+    }
+
+    @Override
+    public double getParseMeanMillis() {
+        final var count = parsing.count();
+        return count == 0 ? 0 : parsing.sumNanos() / 1e6 / count;
+    }
+
+    @Override
+    public Map<String, Long> getStatusCounts() {
+        final var counts = new LinkedHashMap<String, Long>();
+        for (int status = 0; status < STATUS_CODES; status++) {
+            final var count = statuses.get(status);
+            if (count > 0) {
+                counts.put(String.valueOf(status), count);
+            }
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,26 @@
+package com.alphabrik.msal.metrics;
+
+import java.util.Map;
+
+public interface OperationMetricsMXBean {
+
+    long getCount();
+
+    long getInFlight();
+
+    long getErrors();
+
+    long getBytesReceived();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP99Millis();
+
+    double getMaxMillis();
+
+    double getParseMeanMillis();
+
+    Map<String, Long> getStatusCounts();
+}
@@ -0,0 +1,102 @@
+package com.alphabrik.msal.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Renders a {@link MetricsRegistry} in the Prometheus text format and optionally serves it on {@code /metrics}.
+ */
+public class PrometheusExporter implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PrometheusExporter.class);
+
+    private final MetricsRegistry registry;
+    private       HttpServer      server;
+
+    public PrometheusExporter(final MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    public PrometheusExporter serve(final InetSocketAddress address) throws IOException {
+        server = HttpServer.create(address, 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+        LOG.info("Serving metrics on http://{}:{}/metrics", address.getHostString(), server.getAddress().getPort());
+        return this;
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    public String scrape() {
+        final var out = new StringBuilder(8192);
+
+        header(out, "msal_graph_request_seconds", "histogram", "Latency of calls including queueing and retries");
+        for (final var metrics : registry.all()) {
+            histogram(out, "msal_graph_request_seconds", metrics.operation(), metrics.latency());
+        }
+        header(out, "msal_graph_parse_seconds", "histogram", "Time spent binding response bodies");
+        for (final var metrics : registry.all()) {
+            histogram(out, "msal_graph_parse_seconds", metrics.operation(), metrics.parsing());
+        }
+        header(out, "msal_graph_responses_total", "counter", "Calls by final HTTP status, 0 if no response was received");
+        for (final var metrics : registry.all()) {
+            metrics.getStatusCounts()
+                   .forEach((status, count) -> out.append("msal_graph_responses_total{operation=\"")
+                                                  .append(metrics.operation().value)
+                                                  .append("\",code=\"").append(status).append("\"} ")
+                                                  .append(count).append('\n'));
+        }
+        header(out, "msal_graph_response_bytes_total", "counter", "Response body bytes received");
+        for (final var metrics : registry.all()) {
+            sample(out, "msal_graph_response_bytes_total", metrics.operation(), metrics.getBytesReceived());
+        }
+        header(out, "msal_graph_in_flight", "gauge", "Calls issued and not yet completed");
+        for (final var metrics : registry.all()) {
+            sample(out, "msal_graph_in_flight", metrics.operation(), metrics.getInFlight());
+        }
+        return out.toString();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try (exchange) {
+            final var bytes = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        }
+    }
+
+    private static void header(final StringBuilder out, final String name, final String type, final String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+           .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(final StringBuilder out, final String name, final Operation operation, final long value) {
+        out.append(name).append("{operation=\"").append(operation.value).append("\"} ").append(value).append('\n');
+    }
+
+    private static void histogram(final StringBuilder out, final String name, final Operation operation, final Histogram histogram) {
+        final var cumulative = histogram.cumulativeCounts();
+        for (int i = 0; i < Histogram.BUCKETS.length; i++) {
+            out.append(name).append("_bucket{operation=\"").append(operation.value)
+               .append("\",le=\"").append(Histogram.BUCKETS[i]).append("\"} ").append(cumulative[i]).append('\n');
+        }
+        out.append(name).append("_bucket{operation=\"").append(operation.value)
+           .append("\",le=\"+Inf\"} ").append(cumulative[cumulative.length - 1]).append('\n');
+        out.append(name).append("_sum{operation=\"").append(operation.value).append("\"} ")
+           .append(histogram.sumNanos() / 1e9).append('\n');
+        out.append(name).append("_count{operation=\"").append(operation.value).append("\"} ")
+           .append(cumulative[cumulative.length - 1]).append('\n');
+    }
+}
@@ -11,10 +11,21 @@ public record Attachment(
     String id,
     String name,
     String contentType,
+    long size,
     byte[] contentBytes,
     Instant lastModifiedDateTime
 ) {
 
+    public static final String FILE_ATTACHMENT = "#microsoft.graph.fileAttachment";
+
+    public boolean isFile() {
+        return FILE_ATTACHMENT.equals(type);
+    }
+
+    public Attachment withContent(final byte[] content) {
+        return new Attachment(type, id, name, contentType, size, content, lastModifiedDateTime);
+    }
+
     @Override
     public boolean equals(final Object o) {
         if (this == o) return true;
@@ -22,12 +33,15 @@ public record Attachment(
         return Objects.equals(type, that.type) && Objects.equals(id, that.id) && Objects.equals(
             name,
             that.name
-        ) && Objects.equals(contentType, that.contentType) && Objects.equals(lastModifiedDateTime, that.lastModifiedDateTime);
+        ) && Objects.equals(contentType, that.contentType) && size == that.size && Objects.equals(
+            lastModifiedDateTime,
+            that.lastModifiedDateTime
+        );
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(type, id, name, contentType, lastModifiedDateTime);
+        return Objects.hash(type, id, name, contentType, size, lastModifiedDateTime);
     }
 
     @Override
@@ -37,11 +51,15 @@ public record Attachment(
                ", type='" + type + '\'' +
                ", name='" + name + '\'' +
                ", contentType='" + contentType + '\'' +
+               ", size=" + size +
                ", contentBytes=[" + shorten(25) + "]" +
                '}';
     }
 
     private String shorten(final int maxLength) {
-        return new String(contentBytes, 0, maxLength) + (contentBytes.length > maxLength ? "..." : "");
+        if (contentBytes == null) {
+            return "";
+        }
+        return new String(contentBytes, 0, Math.min(maxLength, contentBytes.length)) + (contentBytes.length > maxLength ? "..." : "");
     }
 }
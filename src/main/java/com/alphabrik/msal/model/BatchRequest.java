@@ -0,0 +1,22 @@
+package com.alphabrik.msal.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+import java.util.Map;
+
+public record BatchRequest(
+    List<Item> requests
+) {
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public record Item(
+        String id,
+        String method,
+        String url,
+        Map<String, String> headers,
+        Object body
+    ) {
+
+    }
+}
@@ -0,0 +1,20 @@
+package com.alphabrik.msal.model;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.List;
+import java.util.Map;
+
+public record BatchResponse(
+    List<Item> responses
+) {
+
+    public record Item(
+        String id,
+        int status,
+        Map<String, String> headers,
+        JsonNode body
+    ) {
+
+    }
+}
@@ -0,0 +1,22 @@
+package com.alphabrik.msal.model;
+
+public record BatchResult(
+    String messageId,
+    int status,
+    String error
+) {
+
+    public boolean isSuccess() {
+        return status >= 200 && status < 300;
+    }
+
+    // status 0 means the batch request itself did not complete
+    public boolean isRetryable() {
+        return status == 0 || status == 429 || status >= 500;
+    }
+
+    @Override
+    public String toString() {
+        return messageId + " " + status + (error != null ? " " + error : "");
+    }
+}
@@ -0,0 +1,31 @@
+package com.alphabrik.msal.model;
+
+import java.time.Duration;
+
+public record BulkSummary(
+    long processed,
+    long failed,
+    Duration elapsed,
+    Duration p50,
+    Duration p90,
+    Duration p99,
+    Duration max
+) {
+
+    public double throughput() {
+        final var seconds = elapsed.toNanos() / 1e9;
+        return seconds > 0 ? processed / seconds : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "processed:" + processed +
+               " failed:" + failed +
+               " elapsed:" + elapsed.toMillis() + "ms" +
+               " throughput:" + String.format("%.1f/s", throughput()) +
+               " p50:" + p50.toMillis() + "ms" +
+               " p90:" + p90.toMillis() + "ms" +
+               " p99:" + p99.toMillis() + "ms" +
+               " max:" + max.toMillis() + "ms";
+    }
+}
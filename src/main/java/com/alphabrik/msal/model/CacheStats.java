@@ -0,0 +1,28 @@
+package com.alphabrik.msal.model;
+
+public record CacheStats(
+    long hits,
+    long misses,
+    long deduplicated,
+    long evictions,
+    int entries,
+    int blobs,
+    long sizeBytes
+) {
+
+    public double hitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    @Override
+    public String toString() {
+        return "hits:" + hits +
+               " misses:" + misses +
+               " hitRate:" + String.format("%.2f", hitRate()) +
+               " deduplicated:" + deduplicated +
+               " evictions:" + evictions +
+               " entries:" + entries +
+               " blobs:" + blobs +
+               " size:" + sizeBytes;
+    }
+}
@@ -0,0 +1,18 @@
+package com.alphabrik.msal.model;
+
+public record ChangeNotification(
+    String subscriptionId,
+    String clientState,
+    String changeType,
+    String resource,
+    ResourceData resourceData
+) {
+
+    public record ResourceData(String id) {
+
+    }
+
+    public String messageId() {
+        return resourceData != null ? resourceData.id() : null;
+    }
+}
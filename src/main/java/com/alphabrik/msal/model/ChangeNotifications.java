@@ -0,0 +1,7 @@
+package com.alphabrik.msal.model;
+
+import java.util.List;
+
+public record ChangeNotifications(List<ChangeNotification> value) {
+
+}
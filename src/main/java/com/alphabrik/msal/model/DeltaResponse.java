@@ -0,0 +1,18 @@
+package com.alphabrik.msal.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.List;
+
+public record DeltaResponse(
+    @JsonProperty("@odata.context")
+    String context,
+    @JsonProperty("@odata.nextLink")
+    String nextLink,
+    @JsonProperty("@odata.deltaLink")
+    String deltaLink,
+    List<ObjectNode> value
+) {
+
+}
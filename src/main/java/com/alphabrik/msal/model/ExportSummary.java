@@ -0,0 +1,25 @@
+package com.alphabrik.msal.model;
+
+import java.time.Duration;
+
+public record ExportSummary(
+    int shards,
+    int skipped,
+    int failed,
+    long messages,
+    long bytes,
+    Duration elapsed
+) {
+
+    @Override
+    public String toString() {
+        final var seconds = Math.max(1, elapsed.toMillis()) / 1000.0;
+        return "shards:" + shards +
+               " skipped:" + skipped +
+               " failed:" + failed +
+               " messages:" + messages +
+               " bytes:" + bytes +
+               " elapsed:" + elapsed.toMillis() + "ms" +
+               " throughput:" + String.format("%.1f messages/s %.2f MB/s", messages / seconds, bytes / seconds / 1e6);
+    }
+}
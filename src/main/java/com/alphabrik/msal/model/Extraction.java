@@ -0,0 +1,18 @@
+package com.alphabrik.msal.model;
+
+/**
+ * What an extractor found in one attachment, without the content.
+ */
+public record Extraction(
+    String messageId,
+    String attachmentId,
+    String name,
+    String extractor,
+    String value
+) {
+
+    @Override
+    public String toString() {
+        return messageId + " " + name + " " + extractor + ": " + value;
+    }
+}
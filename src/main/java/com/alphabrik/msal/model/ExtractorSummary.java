@@ -0,0 +1,33 @@
+package com.alphabrik.msal.model;
+
+import java.time.Duration;
+
+/**
+ * The work of one extractor in a scan. {@code busy} is the time the extractor ran, summed over all workers, so the
+ * throughput is that of a single worker running it.
+ */
+public record ExtractorSummary(
+    String name,
+    long attachments,
+    long found,
+    long failed,
+    long bytes,
+    Duration busy
+) {
+
+    public double megabytesPerSecond() {
+        final var seconds = busy.toNanos() / 1e9;
+        return seconds > 0 ? bytes / seconds / 1e6 : 0;
+    }
+
+    @Override
+    public String toString() {
+        return name +
+               ": attachments:" + attachments +
+               " found:" + found +
+               " failed:" + failed +
+               " bytes:" + bytes +
+               " busy:" + busy.toMillis() + "ms" +
+               " throughput:" + String.format("%.1f MB/s", megabytesPerSecond());
+    }
+}
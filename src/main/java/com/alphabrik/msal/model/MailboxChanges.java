@@ -0,0 +1,22 @@
+package com.alphabrik.msal.model;
+
+import java.util.List;
+
+public record MailboxChanges(
+    List<Message> changed,
+    List<String> removed,
+    boolean initial,
+    String deltaLink
+) {
+
+    public boolean isEmpty() {
+        return changed.isEmpty() && removed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return (initial ? "initial sync" : "delta sync") +
+               " changed:" + changed.size() +
+               " removed:" + removed.size();
+    }
+}
@@ -12,6 +12,10 @@ public record Message(
     boolean hasAttachments
 ) {
 
+    public String senderAddress() {
+        return from != null && from.emailAddress() != null ? from.emailAddress().address() : null;
+    }
+
     @Override
     public String toString() {
         return id +
@@ -0,0 +1,21 @@
+package com.alphabrik.msal.model;
+
+import java.time.Instant;
+
+public record MessagePreview(
+    String id,
+    String internetMessageId,
+    String subject,
+    String bodyPreview,
+    Instant receivedDateTime
+) {
+
+    @Override
+    public String toString() {
+        return id +
+               " messageId:" + internetMessageId +
+               " subject:" + subject +
+               " received:" + receivedDateTime +
+               " preview:" + bodyPreview;
+    }
+}
@@ -0,0 +1,11 @@
+package com.alphabrik.msal.model;
+
+/**
+ * Just enough of a message to act on its read state, see {@code MessageQuery.of(MessageState.class)}.
+ */
+public record MessageState(
+    String id,
+    boolean isRead
+) {
+
+}
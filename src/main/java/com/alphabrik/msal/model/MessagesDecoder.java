@@ -0,0 +1,203 @@
+package com.alphabrik.msal.model;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Decodes a {@link MessagesResponse} page token by token from a stream and hands each {@link Message} to a consumer
+ * as soon as it is complete, so neither the body nor the page is held in memory as a whole.
+ * <p>
+ * Sender names and addresses repeat across a mailbox. They are looked up by their characters in the parser buffer
+ * before a String is created, and the {@link From} of a sender is shared by all its messages. Both caches are small,
+ * direct-mapped and overwrite on collision. They are shared by all threads without locking, which is safe because
+ * they only ever hold immutable values.
+ */
+public final class MessagesDecoder {
+
+    // power of two, enough for the distinct senders of a few pages
+    private static final int CACHE_SIZE = 4096;
+
+    private final JsonFactory factory;
+    private final String[]    strings = new String[CACHE_SIZE];
+    private final From[]      senders = new From[CACHE_SIZE];
+
+    public MessagesDecoder(final JsonFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Passes the messages of the page to {@code consumer} in order and returns {@code @odata.nextLink}, null on the last page.
+     * Properties other than those of {@link Message} are skipped.
+     */
+    public String decode(final InputStream in, final Consumer<? super Message> consumer) throws IOException {
+        String nextLink = null;
+        try (final var parser = factory.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final var field = parser.getCurrentName();
+                parser.nextToken();
+                if ("value".equals(field)) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        consumer.accept(message(parser));
+                    }
+                } else if ("@odata.nextLink".equals(field)) {
+                    nextLink = parser.getValueAsString();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return nextLink;
+    }
+
+    private Message message(final JsonParser parser) throws IOException {
+        String  id               = null;
+        String  subject          = null;
+        From    from             = null;
+        Instant sentDateTime     = null;
+        Instant receivedDateTime = null;
+        boolean isRead           = false;
+        boolean hasAttachments   = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final var field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "id" -> id = parser.getValueAsString();
+                case "subject" -> subject = parser.getValueAsString();
+                case "from" -> from = from(parser);
+                case "sentDateTime" -> sentDateTime = instant(parser);
+                case "receivedDateTime" -> receivedDateTime = instant(parser);
+                case "isRead" -> isRead = parser.getValueAsBoolean();
+                case "hasAttachments" -> hasAttachments = parser.getValueAsBoolean();
+                default -> parser.skipChildren();
+            }
+        }
+        return new Message(id, from, subject, sentDateTime, receivedDateTime, isRead, hasAttachments);
+    }
+
+    private From from(final JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        String  name    = null;
+        String  address = null;
+        boolean present = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final var field = parser.getCurrentName();
+            parser.nextToken();
+            if (!"emailAddress".equals(field) || parser.currentToken() != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            present = true;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final var property = parser.getCurrentName();
+                parser.nextToken();
+                switch (property) {
+                    case "name" -> name = intern(parser);
+                    case "address" -> address = intern(parser);
+                    default -> parser.skipChildren();
+                }
+            }
+        }
+        return present ? sender(name, address) : new From(null);
+    }
+
+    private From sender(final String name, final String address) {
+        final var slot   = (31 * Objects.hashCode(address) + Objects.hashCode(name)) & (CACHE_SIZE - 1);
+        final var cached = senders[slot];
+        if (cached != null
+            && Objects.equals(cached.emailAddress().address(), address)
+            && Objects.equals(cached.emailAddress().name(), name)) {
+            return cached;
+        }
+        final var from = new From(new EmailAddress(name, address));
+        senders[slot] = from;
+        return from;
+    }
+
+    private String intern(final JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.VALUE_STRING) {
+            return parser.currentToken() == JsonToken.VALUE_NULL ? null : parser.getValueAsString();
+        }
+        final var chars  = parser.getTextCharacters();
+        final var offset = parser.getTextOffset();
+        final var length = parser.getTextLength();
+        int       hash   = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        final var slot   = (hash ^ hash >>> 16) & (CACHE_SIZE - 1);
+        final var cached = strings[slot];
+        if (cached != null && contentEquals(cached, chars, offset, length)) {
+            return cached;
+        }
+        final var value = new String(chars, offset, length);
+        strings[slot] = value;
+        return value;
+    }
+
+    private static boolean contentEquals(final String value, final char[] chars, final int offset, final int length) {
+        if (value.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Graph sends {@code 2023-06-01T10:15:30Z}, which is read straight from the parser buffer. Anything else,
+     * like fractional seconds or offsets, goes through {@link Instant#parse}, whose formatter allocates far more.
+     */
+    private static Instant instant(final JsonParser parser) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        final var c = parser.getTextCharacters();
+        final var o = parser.getTextOffset();
+        if (parser.getTextLength() == 20
+            && c[o + 4] == '-' && c[o + 7] == '-' && c[o + 10] == 'T'
+            && c[o + 13] == ':' && c[o + 16] == ':' && c[o + 19] == 'Z') {
+            final var year   = digits(c, o, 4);
+            final var month  = digits(c, o + 5, 2);
+            final var day    = digits(c, o + 8, 2);
+            final var hour   = digits(c, o + 11, 2);
+            final var minute = digits(c, o + 14, 2);
+            final var second = digits(c, o + 17, 2);
+            if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= 31
+                && hour >= 0 && hour < 24 && minute >= 0 && minute < 60 && second >= 0 && second < 60) {
+                final var epochDay = LocalDate.of(year, month, day).toEpochDay();
+                return Instant.ofEpochSecond(epochDay * 86_400 + hour * 3_600 + minute * 60 + second);
+            }
+        }
+        return Instant.parse(parser.getText());
+    }
+
+    // -1 if not all digits
+    private static int digits(final char[] chars, final int offset, final int length) {
+        int value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            final var digit = chars[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
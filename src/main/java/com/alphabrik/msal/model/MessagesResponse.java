@@ -7,6 +7,8 @@ import java.util.List;
 public record MessagesResponse(
     @JsonProperty("@odata.context")
     String context,
+    @JsonProperty("@odata.nextLink")
+    String nextLink,
     List<Message> value) {
 
 }
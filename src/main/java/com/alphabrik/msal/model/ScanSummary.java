@@ -0,0 +1,27 @@
+package com.alphabrik.msal.model;
+
+import java.time.Duration;
+import java.util.List;
+
+public record ScanSummary(
+    long messages,
+    long attachments,
+    long skipped,
+    long failed,
+    long bytes,
+    Duration elapsed,
+    List<ExtractorSummary> extractors
+) {
+
+    @Override
+    public String toString() {
+        final var seconds = Math.max(1, elapsed.toMillis()) / 1000.0;
+        return "messages:" + messages +
+               " attachments:" + attachments +
+               " skipped:" + skipped +
+               " failed:" + failed +
+               " bytes:" + bytes +
+               " elapsed:" + elapsed.toMillis() + "ms" +
+               " throughput:" + String.format("%.1f attachments/s %.2f MB/s", attachments / seconds, bytes / seconds / 1e6);
+    }
+}
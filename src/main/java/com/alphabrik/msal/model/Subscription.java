@@ -0,0 +1,17 @@
+package com.alphabrik.msal.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.time.Instant;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record Subscription(
+    String id,
+    String changeType,
+    String notificationUrl,
+    String resource,
+    String clientState,
+    Instant expirationDateTime
+) {
+
+}
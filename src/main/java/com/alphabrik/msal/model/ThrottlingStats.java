@@ -0,0 +1,19 @@
+package com.alphabrik.msal.model;
+
+public record ThrottlingStats(
+    long requests,
+    long successful,
+    long throttled,
+    long retried,
+    long failed
+) {
+
+    @Override
+    public String toString() {
+        return "requests:" + requests +
+               " successful:" + successful +
+               " throttled:" + throttled +
+               " retried:" + retried +
+               " failed:" + failed;
+    }
+}
@@ -0,0 +1,90 @@
+package com.alphabrik.msal.rules;
+
+import com.alphabrik.msal.model.Message;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * A named condition over a {@link Message} and the actions for the messages it matches.
+ */
+public record Rule(String name, Predicate<Message> condition, Set<RuleAction> actions) {
+
+    public static final Set<String> CONDITIONS = Set.of("sender", "subject", "hasAttachments", "isRead", "olderThan");
+
+    public boolean matches(final Message message) {
+        return condition.test(message);
+    }
+
+    /**
+     * Compiles the conditions once, all of which must hold; no conditions match every message.
+     * <ul>
+     *     <li>{@code sender}: comma separated addresses, or domains starting with {@code @}, ignoring case</li>
+     *     <li>{@code subject}: a regular expression found anywhere in the subject, ignoring case</li>
+     *     <li>{@code hasAttachments}, {@code isRead}: {@code true} or {@code false}</li>
+     *     <li>{@code olderThan}: an ISO-8601 duration like {@code P30D}, measured from now</li>
+     * </ul>
+     * Boolean and date checks run before sender lookups, the subject pattern runs last.
+     */
+    public static Rule compile(final String name, final Map<String, String> conditions, final Set<RuleAction> actions) {
+        if (actions.isEmpty()) {
+            throw new IllegalArgumentException("Rule " + name + " has no action!");
+        }
+        for (final var key : conditions.keySet()) {
+            if (!CONDITIONS.contains(key)) {
+                throw new IllegalArgumentException("Rule " + name + " has an unknown condition: " + key);
+            }
+        }
+
+        Predicate<Message> condition = message -> true;
+        if (conditions.containsKey("hasAttachments")) {
+            final var expected = Boolean.parseBoolean(conditions.get("hasAttachments").trim());
+            condition = condition.and(message -> message.hasAttachments() == expected);
+        }
+        if (conditions.containsKey("isRead")) {
+            final var expected = Boolean.parseBoolean(conditions.get("isRead").trim());
+            condition = condition.and(message -> message.isRead() == expected);
+        }
+        if (conditions.containsKey("olderThan")) {
+            final var cutoff = Instant.now().minus(Duration.parse(conditions.get("olderThan").trim()));
+            condition = condition.and(message -> message.receivedDateTime() != null && message.receivedDateTime().isBefore(cutoff));
+        }
+        if (conditions.containsKey("sender")) {
+            condition = condition.and(sender(conditions.get("sender")));
+        }
+        if (conditions.containsKey("subject")) {
+            final var pattern = Pattern.compile(conditions.get("subject"), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+            condition = condition.and(message -> message.subject() != null && pattern.matcher(message.subject()).find());
+        }
+        return new Rule(name, condition, Collections.unmodifiableSet(EnumSet.copyOf(actions)));
+    }
+
+    private static Predicate<Message> sender(final String senders) {
+        final var addresses = new HashSet<String>();
+        final var domains   = new HashSet<String>();
+        for (final var sender : senders.split(",")) {
+            final var value = sender.trim().toLowerCase(Locale.ROOT);
+            if (value.startsWith("@")) {
+                domains.add(value.substring(1));
+            } else if (!value.isEmpty()) {
+                addresses.add(value);
+            }
+        }
+        return message -> {
+            final var address = message.senderAddress();
+            if (address == null) {
+                return false;
+            }
+            final var lower = address.toLowerCase(Locale.ROOT);
+            return addresses.contains(lower) || !domains.isEmpty() && domains.contains(lower.substring(lower.lastIndexOf('@') + 1));
+        };
+    }
+}
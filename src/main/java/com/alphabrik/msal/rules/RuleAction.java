@@ -0,0 +1,27 @@
+package com.alphabrik.msal.rules;
+
+/**
+ * What happens to the messages a rule matches. Actions are applied in declaration order,
+ * so attachments are extracted before a message is deleted.
+ */
+public enum RuleAction {
+    EXTRACT_ATTACHMENTS("extractAttachments"),
+    MARK_READ("markRead"),
+    MARK_UNREAD("markUnread"),
+    DELETE("delete");
+
+    public final String value;
+
+    RuleAction(String value) {
+        this.value = value;
+    }
+
+    public static RuleAction of(final String value) {
+        for (final var action : values()) {
+            if (action.value.equalsIgnoreCase(value.trim())) {
+                return action;
+            }
+        }
+        throw new IllegalArgumentException("Unknown rule action: " + value);
+    }
+}
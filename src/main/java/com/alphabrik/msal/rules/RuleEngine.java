@@ -0,0 +1,169 @@
+package com.alphabrik.msal.rules;
+
+import com.alphabrik.msal.Configuration;
+import com.alphabrik.msal.MailServer;
+import com.alphabrik.msal.model.BatchResult;
+import com.alphabrik.msal.model.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Classifies messages with an ordered list of {@link Rule}s in one pass and applies the resulting actions in bulk.
+ * <p>
+ * The first rule that matches a message decides its actions. Matching only collects message ids per action,
+ * nothing is changed while the mailbox is paged. {@link #apply} then marks and deletes through {@code $batch}
+ * requests, one per 20 messages instead of one request per message.
+ */
+public class RuleEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RuleEngine.class);
+
+    /**
+     * Ids by action and match counts by rule name, in rule order.
+     */
+    public record Matches(long evaluated, Map<String, Long> byRule, Map<RuleAction, List<String>> ids) {
+
+        public List<String> ids(final RuleAction action) {
+            return ids.getOrDefault(action, List.of());
+        }
+
+        @Override
+        public String toString() {
+            return "evaluated:" + evaluated + " matched:" + byRule;
+        }
+    }
+
+    private final List<Rule> rules;
+
+    public RuleEngine(final List<Rule> rules) {
+        this.rules = List.copyOf(rules);
+    }
+
+    /**
+     * Reads the rules listed in {@code rules}, in that order, each from {@code rule.<name>.action} and
+     * the conditions {@code rule.<name>.<condition>}, see {@link Rule#compile}.
+     */
+    public static RuleEngine fromConfiguration(final Configuration config) throws Exception {
+        final var rules = new ArrayList<Rule>();
+        for (final var name : config.getRules()) {
+            final var conditions = new HashMap<String, String>();
+            for (final var condition : Rule.CONDITIONS) {
+                final var property = "rule." + name + "." + condition;
+                if (config.isSet(property)) {
+                    conditions.put(condition, config.getOrThrow(property));
+                }
+            }
+            final var actions = new HashSet<RuleAction>();
+            for (final var action : config.getOrThrow("rule." + name + ".action").split(",")) {
+                actions.add(RuleAction.of(action));
+            }
+            rules.add(Rule.compile(name, conditions, actions));
+        }
+        return new RuleEngine(rules);
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    public Matches evaluate(final Iterator<Message> messages) {
+        final var counts = new long[rules.size()];
+        final var ids    = new EnumMap<RuleAction, List<String>>(RuleAction.class);
+        long      evaluated = 0;
+        while (messages.hasNext()) {
+            final var message = messages.next();
+            evaluated++;
+            for (int i = 0; i < rules.size(); i++) {
+                final var rule = rules.get(i);
+                if (rule.matches(message)) {
+                    counts[i]++;
+                    for (final var action : rule.actions()) {
+                        ids.computeIfAbsent(action, key -> new ArrayList<>()).add(message.id());
+                    }
+                    break;
+                }
+            }
+        }
+
+        final var byRule = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < rules.size(); i++) {
+            byRule.put(rules.get(i).name(), counts[i]);
+        }
+        return new Matches(evaluated, byRule, ids);
+    }
+
+    /**
+     * Applies the actions in {@link RuleAction} order. Attachments are saved to {@code attachmentDirectory/<messageId>};
+     * a message whose attachments could not be saved is not deleted, a deleted message is not marked.
+     * Returns the failures, empty if all succeeded.
+     */
+    public List<BatchResult> apply(
+        final MailServer server,
+        final String account,
+        final Matches matches,
+        final Path attachmentDirectory
+    ) throws Exception {
+        if (!matches.ids(RuleAction.EXTRACT_ATTACHMENTS).isEmpty() && attachmentDirectory == null) {
+            throw new IllegalArgumentException("extractAttachments needs an attachment directory!");
+        }
+        final var failures = new ArrayList<BatchResult>();
+        final var failed   = new HashSet<String>();
+        final var deleted  = Set.copyOf(matches.ids(RuleAction.DELETE));
+        for (final var action : RuleAction.values()) {
+            final var ids = switch (action) {
+                case MARK_READ, MARK_UNREAD -> matches.ids(action).stream().filter(id -> !deleted.contains(id)).toList();
+                case DELETE -> matches.ids(action).stream().filter(id -> !failed.contains(id)).toList();
+                default -> matches.ids(action);
+            };
+            if (ids.isEmpty()) {
+                continue;
+            }
+            final var results = switch (action) {
+                case EXTRACT_ATTACHMENTS -> extractAttachments(server, account, ids, attachmentDirectory);
+                case MARK_READ -> server.toggleRead(account, ids, true);
+                case MARK_UNREAD -> server.toggleRead(account, ids, false);
+                case DELETE -> server.delete(account, ids);
+            };
+            final var actionFailures = results.stream().filter(result -> !result.isSuccess()).toList();
+            actionFailures.forEach(result -> failed.add(result.messageId()));
+            failures.addAll(actionFailures);
+            LOG.info("{}: {} messages, {} failed", action.value, ids.size(), actionFailures.size());
+        }
+        return failures;
+    }
+
+    private static List<BatchResult> extractAttachments(
+        final MailServer server,
+        final String account,
+        final List<String> ids,
+        final Path directory
+    ) {
+        final var results = new ArrayList<BatchResult>(ids.size());
+        for (final var id : ids) {
+            try {
+                server.saveAttachments(account, id, directory.resolve(id.replaceAll("[\\\\/:*?\"<>|]", "_")));
+                results.add(new BatchResult(id, 200, null));
+            } catch (final Exception e) {
+                LOG.warn("Can not extract attachments of {}", id, e);
+                results.add(new BatchResult(id, 0, e.getMessage()));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public String toString() {
+        return rules.stream().map(rule -> rule.name() + rule.actions()).toList().toString();
+    }
+}
@@ -0,0 +1,243 @@
+package com.alphabrik.msal.store;
+
+import com.alphabrik.msal.model.Attachment;
+import com.alphabrik.msal.model.CacheStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Disk cache for attachment content. Entries are keyed by message id, attachment id and
+ * {@code lastModifiedDateTime}, so a changed attachment is a new entry; the content itself is stored once per
+ * SHA-256 hash, so the same file attached to many messages takes the space only once. When the cache grows beyond
+ * its size limit, the least recently used blobs are evicted together with all entries pointing to them.
+ * Every new entry is appended to the index right away, so a process that ends without {@link #close()} keeps it.
+ */
+public class AttachmentCache implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AttachmentCache.class);
+
+    private static final String INDEX_FILE = "index";
+
+    private final Path directory;
+    private final Path blobs;
+    private final long maxBytes;
+
+    private final Map<String, String>      entries     = new HashMap<>();
+    // blob hash -> size, in access order for LRU eviction
+    private final LinkedHashMap<String, Long> blobSizes = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<String>> blobEntries = new HashMap<>();
+    private       long                     sizeBytes;
+    // appends "key<TAB>hash" lines to the index, later lines replace earlier ones of the same key
+    private       Writer                   log;
+
+    private long hits;
+    private long misses;
+    private long deduplicated;
+    private long evictions;
+
+    public AttachmentCache(final Path directory, final long maxBytes) throws IOException {
+        this.directory = directory;
+        this.blobs = directory.resolve("blobs");
+        this.maxBytes = maxBytes;
+        Files.createDirectories(blobs);
+        load();
+    }
+
+    public static String key(final String messageId, final Attachment attachment) {
+        return messageId + "/" + attachment.id() + "/" + attachment.lastModifiedDateTime();
+    }
+
+    /**
+     * Returns the cached content, or empty if it is not cached (any more).
+     */
+    public Optional<byte[]> read(final String key) throws IOException {
+        final Path blob;
+        synchronized (this) {
+            final var hash = entries.get(key);
+            if (hash == null) {
+                misses++;
+                return Optional.empty();
+            }
+            blobSizes.get(hash);
+            blob = blobPath(hash);
+            hits++;
+        }
+        try {
+            final var content = Files.readAllBytes(blob);
+            Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis()));
+            return Optional.of(content);
+        } catch (final NoSuchFileException e) {
+            // evicted between lookup and read
+            synchronized (this) {
+                hits--;
+                misses++;
+                entries.remove(key);
+            }
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Creates a temporary file inside the cache directory, to be filled and handed to {@link #put(String, Path)}.
+     */
+    public Path newTempFile() throws IOException {
+        return Files.createTempFile(directory, "download", ".tmp");
+    }
+
+    /**
+     * Moves {@code file} into the cache under {@code key}. If the same content is already cached the file is dropped.
+     */
+    public void put(final String key, final Path file) throws IOException {
+        final var hash = sha256(file);
+        final var size = Files.size(file);
+        final var blob = blobPath(hash);
+        synchronized (this) {
+            if (blobSizes.get(hash) != null) {
+                // the lookup counts as an access, so the shared blob becomes the most recently used one
+                deduplicated++;
+                Files.delete(file);
+                Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis()));
+            } else {
+                Files.createDirectories(blob.getParent());
+                Files.move(file, blob, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                blobSizes.put(hash, size);
+                sizeBytes += size;
+            }
+            final var previous = entries.put(key, hash);
+            if (previous != null && !previous.equals(hash)) {
+                blobEntries.get(previous).remove(key);
+            }
+            blobEntries.computeIfAbsent(hash, h -> new HashSet<>()).add(key);
+            log.write(key + "\t" + hash + "\n");
+            log.flush();
+            evict();
+        }
+    }
+
+    public synchronized CacheStats stats() {
+        return new CacheStats(hits, misses, deduplicated, evictions, entries.size(), blobSizes.size(), sizeBytes);
+    }
+
+    /**
+     * Rewrites the index with the current entries only, dropping replaced and evicted ones.
+     */
+    public synchronized void flush() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+        final var tmp = directory.resolve(INDEX_FILE + ".tmp");
+        Files.write(tmp, entries.entrySet()
+                                .stream()
+                                .map(entry -> entry.getKey() + "\t" + entry.getValue())
+                                .toList());
+        Files.move(tmp, directory.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log = Files.newBufferedWriter(directory.resolve(INDEX_FILE), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        log.close();
+    }
+
+    private void evict() throws IOException {
+        final var iterator = blobSizes.entrySet().iterator();
+        while (sizeBytes > maxBytes && iterator.hasNext()) {
+            final var blob = iterator.next();
+            iterator.remove();
+            sizeBytes -= blob.getValue();
+            evictions++;
+            final var keys = blobEntries.remove(blob.getKey());
+            if (keys != null) {
+                keys.forEach(entries::remove);
+            }
+            Files.deleteIfExists(blobPath(blob.getKey()));
+            LOG.debug("Evicted {} ({} bytes)", blob.getKey(), blob.getValue());
+        }
+    }
+
+    private void load() throws IOException {
+        // downloads of a process that ended before handing them to put
+        try (final var stale = Files.newDirectoryStream(directory, "download*.tmp")) {
+            for (final var file : stale) {
+                Files.deleteIfExists(file);
+            }
+        }
+        // least recently used first, reads touch the modification time
+        try (final var files = Files.walk(blobs)) {
+            final var found = files.filter(Files::isRegularFile)
+                                   .sorted(Comparator.comparing(AttachmentCache::lastModified))
+                                   .toList();
+            for (final var file : found) {
+                final var size = Files.size(file);
+                blobSizes.put(file.getFileName().toString(), size);
+                sizeBytes += size;
+            }
+        }
+        final var index = directory.resolve(INDEX_FILE);
+        if (Files.exists(index)) {
+            // a line cut short by a crash names no existing blob and is skipped
+            for (final var line : Files.readAllLines(index)) {
+                final var tab = line.indexOf('\t');
+                if (tab > 0 && blobSizes.containsKey(line.substring(tab + 1))) {
+                    entries.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+        }
+        entries.forEach((key, hash) -> blobEntries.computeIfAbsent(hash, h -> new HashSet<>()).add(key));
+
+        // blobs without entries, e.g. after a crash between storing a blob and appending its entry, stay indexed by
+        // their hash: the next put of the same content reuses them, otherwise they are evicted like any other blob
+        evict();
+        flush();
+        LOG.debug("Loaded attachment cache {}: {}", directory, stats());
+    }
+
+    private Path blobPath(final String hash) {
+        return blobs.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static FileTime lastModified(final Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (final IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static String sha256(final Path file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (final InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -0,0 +1,441 @@
+package com.alphabrik.msal.store;
+
+import com.alphabrik.msal.MailServer;
+import com.alphabrik.msal.model.MailboxChanges;
+import com.alphabrik.msal.model.Message;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.IntPredicate;
+
+/**
+ * Local copy of a mailbox for offline queries. Messages are kept in an append-only log on disk; memory only holds
+ * fixed-size index data per message (id hash, offset, received time, read flag, sender), so millions of messages fit
+ * in a few dozen MB. The indexes are rebuilt from the log when the store is opened.
+ * <p>
+ * Record layout: {@code int length, byte type, long idHash}, followed for {@link #PUT} by
+ * {@code long receivedMillis, byte isRead, short senderLength, sender, json}.
+ */
+public class MessageStore implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageStore.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper().registerModule(new JavaTimeModule())
+                                                                 .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private static final byte PUT    = 1;
+    private static final byte DELETE = 2;
+
+    private static final int ID_HEADER  = 4 + 1 + 8;
+    private static final int PUT_HEADER = ID_HEADER + 8 + 1 + 2;
+
+    private static final String LOG_FILE = "messages.log";
+
+    private final Path        directory;
+    private       FileChannel channel;
+    private final ByteBuffer  pending = ByteBuffer.allocate(1 << 20);
+    private       long        end;
+
+    // slot-indexed arrays, every id seen gets a slot until the next compaction
+    private final LongIntHashMap slots    = new LongIntHashMap(1024);
+    private       long[]         idHashes = new long[1024];
+    private       long[]         offsets  = new long[1024];
+    private       long[]         received = new long[1024];
+    private       int[]          senders  = new int[1024];
+    private final BitSet         live     = new BitSet();
+    private final BitSet         unread   = new BitSet();
+    private       int            slotCount;
+    private       long           garbage;
+
+    private final Map<String, Integer>  senderIds = new HashMap<>();
+    private final Map<Integer, IntList> bySender  = new HashMap<>();
+
+    // live slots packed as (receivedKey | slot) and sorted, rebuilt lazily after changes
+    private long[] byReceived;
+
+    public MessageStore(final Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        this.channel = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        replay();
+    }
+
+    /**
+     * Brings the store up to date with a mail folder using a Graph delta query.
+     */
+    public synchronized MailboxChanges sync(final MailServer server, final String account, final String folder) throws Exception {
+        final var deltaTokenFile = directory.resolve("delta-" + folder + ".token");
+        final var changes        = server.syncMessages(account, folder, deltaTokenFile);
+        apply(changes);
+        // only once the changes are on disk, so the next sync fetches them again if applying them failed
+        MailServer.saveDeltaLink(deltaTokenFile, changes);
+        LOG.info("Synced {} into {}: {}", account, directory, changes);
+        return changes;
+    }
+
+    /**
+     * Applies the changes of a sync. An initial sync lists the whole folder, e.g. after the delta token expired or was
+     * lost, so every stored message it does not list was deleted meanwhile and is removed.
+     */
+    public synchronized void apply(final MailboxChanges changes) throws IOException {
+        if (changes.initial()) {
+            final var listed = new LongIntHashMap(changes.changed().size());
+            for (final var message : changes.changed()) {
+                listed.put(hash(message.id()), 0);
+            }
+            final var stale = new ArrayList<Long>();
+            for (int slot = live.nextSetBit(0); slot >= 0; slot = live.nextSetBit(slot + 1)) {
+                if (listed.get(idHashes[slot]) < 0) {
+                    stale.add(idHashes[slot]);
+                }
+            }
+            for (final var idHash : stale) {
+                delete(idHash);
+            }
+            if (!stale.isEmpty()) {
+                LOG.info("Removing {} messages missing from the initial sync of {}", stale.size(), directory);
+            }
+        }
+        for (final var message : changes.changed()) {
+            put(message);
+        }
+        for (final var id : changes.removed()) {
+            delete(id);
+        }
+        flush();
+        channel.force(false);
+        if (garbage > 10_000 && garbage > size()) {
+            compact();
+        }
+    }
+
+    public synchronized Optional<Message> get(final String id) throws IOException {
+        final var slot = slots.get(hash(id));
+        if (slot < 0 || !live.get(slot)) {
+            return Optional.empty();
+        }
+        final var message = read(slot);
+        return id.equals(message.id()) ? Optional.of(message) : Optional.empty();
+    }
+
+    public synchronized int size() {
+        return live.cardinality();
+    }
+
+    public synchronized int unreadCount() {
+        return unread.cardinality();
+    }
+
+    /**
+     * Unread messages, newest first.
+     */
+    public synchronized List<Message> unread(final int limit) throws IOException {
+        return newest(Long.MIN_VALUE, Long.MAX_VALUE, unread::get, limit);
+    }
+
+    /**
+     * Messages from a sender address, newest first.
+     */
+    public synchronized List<Message> fromSender(final String address, final int limit) throws IOException {
+        final var senderId = senderIds.get(address.toLowerCase());
+        if (senderId == null) {
+            return List.of();
+        }
+        final var matching = new BitSet();
+        for (final var slot : bySender.get(senderId).toArray()) {
+            if (live.get(slot) && senders[slot] == senderId) {
+                matching.set(slot);
+            }
+        }
+        return newest(Long.MIN_VALUE, Long.MAX_VALUE, matching::get, limit);
+    }
+
+    /**
+     * Messages received in {@code [from, to)}, newest first.
+     */
+    public synchronized List<Message> receivedBetween(final Instant from, final Instant to, final int limit) throws IOException {
+        return newest(from.toEpochMilli(), to.toEpochMilli(), slot -> true, limit);
+    }
+
+    /**
+     * Rewrites the log with only the current version of every live message.
+     */
+    public synchronized void compact() throws IOException {
+        final var tmp = directory.resolve(LOG_FILE + ".tmp");
+        try (final var out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (int slot = live.nextSetBit(0); slot >= 0; slot = live.nextSetBit(slot + 1)) {
+                final var record = readRecord(offsets[slot]);
+                record.rewind();
+                while (record.hasRemaining()) {
+                    out.write(record);
+                }
+            }
+            out.force(false);
+        }
+        final var dropped = garbage;
+        channel.close();
+        Files.move(tmp, directory.resolve(LOG_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        replay();
+        LOG.info("Compacted {}, dropped {} records", directory, dropped);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void put(final Message message) throws IOException {
+        final var json   = MAPPER.writeValueAsBytes(message);
+        final var sender = message.senderAddress() != null ? message.senderAddress().toLowerCase() : "";
+        final var bytes  = sender.getBytes(StandardCharsets.UTF_8);
+        final var millis = message.receivedDateTime() != null ? message.receivedDateTime().toEpochMilli() : 0;
+        final var idHash = hash(message.id());
+
+        final var record = ByteBuffer.allocate(PUT_HEADER + bytes.length + json.length);
+        record.putInt(record.capacity() - 4)
+              .put(PUT)
+              .putLong(idHash)
+              .putLong(millis)
+              .put((byte) (message.isRead() ? 1 : 0))
+              .putShort((short) bytes.length)
+              .put(bytes)
+              .put(json)
+              .flip();
+        index(idHash, append(record), millis, message.isRead(), sender);
+    }
+
+    private void delete(final String id) throws IOException {
+        delete(hash(id));
+    }
+
+    private void delete(final long idHash) throws IOException {
+        final var record = ByteBuffer.allocate(ID_HEADER);
+        record.putInt(record.capacity() - 4)
+              .put(DELETE)
+              .putLong(idHash)
+              .flip();
+        append(record);
+        unindex(idHash);
+    }
+
+    private long append(final ByteBuffer record) throws IOException {
+        final var offset = end;
+        if (record.remaining() > pending.remaining()) {
+            flush();
+        }
+        if (record.remaining() > pending.capacity()) {
+            write(record);
+        } else {
+            pending.put(record);
+        }
+        end += record.capacity();
+        return offset;
+    }
+
+    private void flush() throws IOException {
+        pending.flip();
+        write(pending);
+        pending.clear();
+    }
+
+    private void write(final ByteBuffer buffer) throws IOException {
+        var pos = channel.size();
+        while (buffer.hasRemaining()) {
+            pos += channel.write(buffer, pos);
+        }
+    }
+
+    private void index(final long idHash, final long offset, final long millis, final boolean isRead, final String sender) {
+        var slot = slots.get(idHash);
+        if (slot < 0) {
+            slot = slotCount++;
+            if (slot == offsets.length) {
+                idHashes = Arrays.copyOf(idHashes, slot * 2);
+                offsets = Arrays.copyOf(offsets, slot * 2);
+                received = Arrays.copyOf(received, slot * 2);
+                senders = Arrays.copyOf(senders, slot * 2);
+            }
+            slots.put(idHash, slot);
+            idHashes[slot] = idHash;
+            senders[slot] = -1;
+        } else if (live.get(slot)) {
+            garbage++;
+        }
+        final var senderId = senderIds.computeIfAbsent(sender, key -> senderIds.size());
+        if (senders[slot] != senderId) {
+            senders[slot] = senderId;
+            bySender.computeIfAbsent(senderId, key -> new IntList()).add(slot);
+        }
+        offsets[slot] = offset;
+        received[slot] = millis;
+        live.set(slot);
+        unread.set(slot, !isRead);
+        byReceived = null;
+    }
+
+    private void unindex(final long idHash) {
+        final var slot = slots.get(idHash);
+        // the delete record itself and the put it replaces are both garbage
+        garbage++;
+        if (slot >= 0 && live.get(slot)) {
+            garbage++;
+            live.clear(slot);
+            unread.clear(slot);
+            byReceived = null;
+        }
+    }
+
+    private List<Message> newest(final long fromMillis, final long toMillis, final IntPredicate filter, final int limit) throws IOException {
+        if (byReceived == null) {
+            byReceived = new long[live.cardinality()];
+            var i = 0;
+            for (int slot = live.nextSetBit(0); slot >= 0; slot = live.nextSetBit(slot + 1)) {
+                byReceived[i++] = receivedKey(received[slot]) | slot;
+            }
+            Arrays.sort(byReceived);
+        }
+
+        // start at the last entry of the second toMillis falls in and walk backwards; slots are below 2^31, so no
+        // entry equals the upper bound
+        final var upper = receivedKey(toMillis) | 0xFFFF_FFFFL;
+        var       i     = -Arrays.binarySearch(byReceived, upper) - 2;
+
+        final var lower  = receivedKey(fromMillis);
+        final var result = new ArrayList<Message>(Math.min(limit, 1024));
+        for (; i >= 0 && result.size() < limit; i--) {
+            if ((byReceived[i] & 0xFFFF_FFFF_0000_0000L) < lower) {
+                break;
+            }
+            final var slot   = (int) byReceived[i];
+            final var millis = received[slot];
+            if (millis >= fromMillis && millis < toMillis && filter.test(slot)) {
+                result.add(read(slot));
+            }
+        }
+        return result;
+    }
+
+    // the seconds since the epoch, clamped to 1970 to 2106, as an unsigned number in the upper 32 bits, with the sign
+    // bit flipped so that the signed order of the keys is the order of the times
+    private static long receivedKey(final long millis) {
+        final var seconds = Math.min(Math.max(Math.floorDiv(millis, 1000), 0), 0xFFFF_FFFFL);
+        return (seconds << 32) ^ Long.MIN_VALUE;
+    }
+
+    private Message read(final int slot) throws IOException {
+        final var record = readRecord(offsets[slot]);
+        final var start  = PUT_HEADER + record.getShort(PUT_HEADER - 2);
+        return MAPPER.readValue(record.array(), start, record.capacity() - start, Message.class);
+    }
+
+    private ByteBuffer readRecord(final long offset) throws IOException {
+        final var header = ByteBuffer.allocate(4);
+        readFully(header, offset);
+        final var record = ByteBuffer.allocate(4 + header.getInt(0));
+        readFully(record, offset);
+        return record;
+    }
+
+    private void readFully(final ByteBuffer buffer, final long offset) throws IOException {
+        var pos = offset;
+        while (buffer.hasRemaining()) {
+            final var read = channel.read(buffer, pos);
+            if (read < 0) {
+                throw new EOFException("Truncated record at " + offset);
+            }
+            pos += read;
+        }
+    }
+
+    private void replay() throws IOException {
+        slots.clear();
+        live.clear();
+        unread.clear();
+        senderIds.clear();
+        bySender.clear();
+        slotCount = 0;
+        garbage = 0;
+        byReceived = null;
+
+        final var size   = channel.size();
+        long      offset = 0;
+        final var in     = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0)), 1 << 16));
+        while (offset + ID_HEADER <= size) {
+            final var length = in.readInt();
+            if (offset + 4 + length > size) {
+                break;
+            }
+            final var type   = in.readByte();
+            final var idHash = in.readLong();
+            if (type == PUT) {
+                final var millis = in.readLong();
+                final var isRead = in.readByte() == 1;
+                final var sender = new byte[in.readShort()];
+                in.readFully(sender);
+                in.skipNBytes(length - (PUT_HEADER - 4) - sender.length);
+                index(idHash, offset, millis, isRead, new String(sender, StandardCharsets.UTF_8));
+            } else {
+                unindex(idHash);
+            }
+            offset += 4 + length;
+        }
+        if (offset < size) {
+            // a crash while appending leaves a partial record behind
+            LOG.warn("Truncating {} bytes of incomplete records in {}", size - offset, directory);
+            channel.truncate(offset);
+        }
+        end = offset;
+        LOG.debug("Loaded {} messages from {}", size(), directory);
+    }
+
+    // 64 bit FNV-1a; in memory ids are only known by hash, get() verifies the id against the record
+    private static long hash(final String id) {
+        var h = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            h ^= id.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static final class IntList {
+
+        private int[] values = new int[4];
+        private int   size;
+
+        void add(final int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
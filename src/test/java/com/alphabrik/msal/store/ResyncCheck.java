@@ -0,0 +1,69 @@
+package com.alphabrik.msal.store;
+
+import com.alphabrik.msal.Configuration;
+import com.alphabrik.msal.MailServer;
+import com.alphabrik.msal.stub.StubGraphServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Checks that a {@link MessageStore} drops the messages deleted while its delta token was lost: after an initial sync,
+ * a message is deleted and another one read on a {@link StubGraphServer}, the token file is removed and the next sync
+ * starts over. Throws on the first failed check.
+ */
+public class ResyncCheck {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResyncCheck.class);
+
+    private static final int MESSAGES = 30;
+
+    public static void main(final String[] args) throws Exception {
+        final var directory = Files.createTempDirectory("resync-check");
+        try (final var stub = new StubGraphServer(0).start()) {
+            final var ids = new ArrayList<String>();
+            for (int i = 0; i < MESSAGES; i++) {
+                ids.add(stub.addMessage("sender" + (i % 3) + "@example.com", "Message " + i));
+            }
+            final var deleted    = ids.get(0);
+            final var properties = String.join("\n", "access_token=resync-check", "account=resync@example.com", "baseUrl=" + stub.getBaseUrl());
+            try (final var server = new MailServer(new Configuration(new ByteArrayInputStream(properties.getBytes(StandardCharsets.ISO_8859_1))));
+                 final var store = new MessageStore(directory)) {
+                check(store.sync(server, "resync@example.com", "inbox").initial(), "first sync is initial");
+                check(store.size() == MESSAGES && store.unreadCount() == MESSAGES, "all messages stored");
+
+                stub.removeMessage(deleted);
+                stub.markRead(ids.get(1), true);
+                Files.delete(directory.resolve("delta-inbox.token"));
+
+                check(store.sync(server, "resync@example.com", "inbox").initial(), "sync without token is initial");
+                check(store.get(deleted).isEmpty(), "deleted message removed");
+                check(store.size() == MESSAGES - 1, "size " + store.size());
+                check(store.unreadCount() == MESSAGES - 2, "unread count " + store.unreadCount());
+                check(store.fromSender("sender0@example.com", MESSAGES).stream().noneMatch(message -> deleted.equals(message.id())), "sender index");
+            }
+            // and the delete records survive reopening the log
+            try (final var store = new MessageStore(directory)) {
+                check(store.size() == MESSAGES - 1 && store.get(deleted).isEmpty(), "deleted after reopening");
+            }
+            LOG.info("Resync check passed");
+        } finally {
+            try (final Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    private static void check(final boolean condition, final String description) {
+        if (!condition) {
+            throw new IllegalStateException("Check failed: " + description);
+        }
+    }
+}
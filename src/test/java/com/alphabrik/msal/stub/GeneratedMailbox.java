@@ -0,0 +1,193 @@
+package com.alphabrik.msal.stub;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A mailbox of millions of messages that are computed from their index instead of stored.
+ * Message 0 is the newest, each following one was received a minute earlier. Only the read and deleted state
+ * is kept, one bit per message, plus the versions of changed messages for delta queries.
+ * The same size and attachment settings always give the same ids and content, so a client can derive valid ids
+ * without listing the mailbox.
+ */
+public class GeneratedMailbox {
+
+    public static final Instant NEWEST   = Instant.parse("2024-01-01T00:00:00Z");
+    public static final Duration INTERVAL = Duration.ofMinutes(1);
+
+    // Graph ids are about 150 characters of base64, the index makes up the last 10
+    private static final String ID_PREFIX = "AAMkAGI2TG93bG9hZHRlc3QtZ2VuZXJhdGVkLW1haWxib3gAAAAAAABGAAAAAADdz3h2eGVuZXJhdGVkLW1lc3NhZ2VzAAAAAAAMAAAAAABwZW5lcmF0ZWQtbWVzc2FnZXMtZm9yLWxvYWQt";
+    private static final int    SENDERS   = 500;
+
+    private final int          size;
+    private final int          attachmentEvery;
+    private final byte[]       attachmentContent;
+    private final AtomicLongArray read;
+    private final AtomicLongArray deleted;
+    private final AtomicLong   version = new AtomicLong();
+
+    // index -> version of its last change
+    private final Map<Integer, Long> changes = new ConcurrentHashMap<>();
+
+    /**
+     * @param attachmentEvery every n-th message has one file attachment of {@code attachmentSize} bytes, 0 for none
+     */
+    public GeneratedMailbox(final int size, final int attachmentEvery, final int attachmentSize) {
+        this.size = size;
+        this.attachmentEvery = attachmentEvery;
+        this.attachmentContent = new byte[attachmentSize];
+        new Random(42).nextBytes(attachmentContent);
+        this.read = new AtomicLongArray((size + 63) / 64);
+        this.deleted = new AtomicLongArray((size + 63) / 64);
+        // two of three messages have been read
+        for (int i = 0; i < size; i++) {
+            if (i % 3 != 0) {
+                set(read, i, true);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String id(final int index) {
+        return ID_PREFIX + String.format("%010d", index);
+    }
+
+    /**
+     * The index of a generated id, -1 for any other id.
+     */
+    public int index(final String id) {
+        if (id == null || id.length() != ID_PREFIX.length() + 10 || !id.startsWith(ID_PREFIX)) {
+            return -1;
+        }
+        try {
+            final var index = Integer.parseInt(id, ID_PREFIX.length(), id.length(), 10);
+            return index < size ? index : -1;
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public Instant received(final int index) {
+        return NEWEST.minus(INTERVAL.multipliedBy(index));
+    }
+
+    /**
+     * The index of the newest message received before {@code instant}, {@link #size()} if there is none.
+     */
+    public int firstBefore(final Instant instant) {
+        final var before = Duration.between(instant, NEWEST);
+        return clamp(Math.floorDiv(before.getSeconds(), INTERVAL.getSeconds()) + 1);
+    }
+
+    /**
+     * The index of the newest message received at or before {@code instant}, {@link #size()} if there is none.
+     */
+    public int firstNotAfter(final Instant instant) {
+        final var before  = Duration.between(instant, NEWEST);
+        final var seconds = before.getSeconds() + (before.getNano() > 0 ? 1 : 0);
+        return clamp(-Math.floorDiv(-seconds, INTERVAL.getSeconds()));
+    }
+
+    private int clamp(final long index) {
+        return (int) Math.max(0, Math.min(index, size));
+    }
+
+    public String sender(final int index) {
+        return "sender" + index * 7 % SENDERS + "@load.example.com";
+    }
+
+    public String senderName(final int index) {
+        return "Sender " + index * 7 % SENDERS;
+    }
+
+    public String subject(final int index) {
+        return "Generated message " + index + " about the quarterly figures";
+    }
+
+    public boolean exists(final int index) {
+        return index >= 0 && index < size && !get(deleted, index);
+    }
+
+    public boolean isRead(final int index) {
+        return get(read, index);
+    }
+
+    public boolean hasAttachment(final int index) {
+        return attachmentEvery > 0 && index % attachmentEvery == 0;
+    }
+
+    public int attachmentSize() {
+        return attachmentContent.length;
+    }
+
+    /**
+     * Attachment content, the same random bytes for every message except for the index in the first four.
+     */
+    public byte[] attachment(final int index) {
+        final var content = attachmentContent.clone();
+        for (int i = 0; i < Math.min(4, content.length); i++) {
+            content[i] = (byte) (index >>> 8 * i);
+        }
+        return content;
+    }
+
+    public boolean markRead(final int index, final boolean isRead) {
+        if (!exists(index)) {
+            return false;
+        }
+        set(read, index, isRead);
+        changes.put(index, version.incrementAndGet());
+        return true;
+    }
+
+    public boolean delete(final int index) {
+        if (!exists(index) || !set(deleted, index, true)) {
+            return false;
+        }
+        changes.put(index, version.incrementAndGet());
+        return true;
+    }
+
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * Indexes changed after {@code since} up to {@code upTo}, in index order.
+     */
+    public int[] changedBetween(final long since, final long upTo) {
+        return changes.entrySet()
+                      .stream()
+                      .filter(change -> change.getValue() > since && change.getValue() <= upTo)
+                      .mapToInt(Map.Entry::getKey)
+                      .sorted()
+                      .toArray();
+    }
+
+    private static boolean get(final AtomicLongArray bits, final int index) {
+        return (bits.get(index >>> 6) & 1L << index) != 0;
+    }
+
+    // returns whether the bit changed
+    private static boolean set(final AtomicLongArray bits, final int index, final boolean value) {
+        final var mask = 1L << index;
+        while (true) {
+            final var word    = bits.get(index >>> 6);
+            final var updated = value ? word | mask : word & ~mask;
+            if (word == updated) {
+                return false;
+            }
+            if (bits.compareAndSet(index >>> 6, word, updated)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.alphabrik.msal.stub;
+
+import com.alphabrik.msal.BulkRunner;
+import com.alphabrik.msal.Configuration;
+import com.alphabrik.msal.MailServer;
+import com.alphabrik.msal.MessageQuery;
+import com.alphabrik.msal.metrics.MailMetrics;
+import com.alphabrik.msal.metrics.MetricsRegistry;
+import com.alphabrik.msal.model.BulkSummary;
+import com.alphabrik.msal.model.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Drives {@link MailServer} against a {@link LoadTestGraphServer} and reports the sustained throughput and the latency
+ * percentiles of each operation. Every operation runs for the given time on random messages with {@code concurrency}
+ * operations pending, through {@link BulkRunner}; the HTTP view of the same run comes from a {@link MetricsRegistry}.
+ * <pre>
+ * LoadDriver &lt;messages&gt; &lt;secondsPerOperation&gt; &lt;concurrency&gt; [latencyMs] [throttleProbability]
+ * </pre>
+ */
+public class LoadDriver {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoadDriver.class);
+
+    private static final String ACCOUNT          = "load@example.com";
+    private static final int    ATTACHMENT_EVERY = 10;
+    private static final int    ATTACHMENT_SIZE  = 32 * 1024;
+    private static final int    PAGE_SIZE        = 100;
+    private static final int    BATCH_SIZE       = 20;
+
+    public static void main(final String[] args) throws Exception {
+        final var messages    = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        final var duration    = Duration.ofSeconds(args.length > 1 ? Long.parseLong(args[1]) : 10);
+        final var concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        final var latency     = Duration.ofMillis(args.length > 3 ? Long.parseLong(args[3]) : 0);
+        final var throttle    = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+
+        final var mailbox  = new GeneratedMailbox(messages, ATTACHMENT_EVERY, ATTACHMENT_SIZE);
+        // MailServer sends batches synchronously, one caller thread per pending batch
+        final var executor = Executors.newFixedThreadPool(concurrency);
+        try (final var graph = new LoadTestGraphServer(0, mailbox).latency(latency, latency.dividedBy(2)).throttle(throttle, 1).start()) {
+            final var config  = configuration(graph.getBaseUrl(), concurrency);
+            final var metrics = new MetricsRegistry();
+
+            // each phase starts on a new MailServer, so the rate one phase was throttled down to does not carry over.
+            // The JIT warms up first on servers of their own, neither the summaries nor the registry count it.
+            final var warmup = Duration.ofSeconds(Math.max(1, duration.toSeconds() / 5));
+            LOG.info("Warming up for {}s", warmup.toSeconds());
+            for (final var phase : phases(mailbox, executor).values()) {
+                run(new MailServer(config, MailMetrics.NOOP), mailbox, phase, warmup, concurrency);
+            }
+            for (final var phase : phases(mailbox, executor).entrySet()) {
+                LOG.info("Running {} for {}s", phase.getKey(), duration.toSeconds());
+                log(phase.getKey(), run(new MailServer(config, metrics), mailbox, phase.getValue(), duration, concurrency));
+            }
+
+            for (final var operation : metrics.all()) {
+                if (operation.getCount() > 0) {
+                    LOG.info(
+                        "http {}: count:{} errors:{} mean:{}ms p50:{}ms p99:{}ms max:{}ms statuses:{}",
+                        operation.operation().value,
+                        operation.getCount(),
+                        operation.getErrors(),
+                        String.format("%.2f", operation.getMeanMillis()),
+                        operation.getP50Millis(),
+                        operation.getP99Millis(),
+                        String.format("%.1f", operation.getMaxMillis()),
+                        operation.getStatusCounts()
+                    );
+                }
+            }
+            LOG.info("Server: {} requests, {} throttled", graph.getRequestCount(), graph.getThrottledCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Configuration configuration(final String baseUrl, final int concurrency) {
+        final var properties = String.join(
+            "\n",
+            "access_token=load-test",
+            "account=" + ACCOUNT,
+            "baseUrl=" + baseUrl,
+            "maxInFlight=" + concurrency,
+            "maxRequestsPerSecond=1000000",
+            "responseCacheEntries=0"
+        );
+        return new Configuration(new ByteArrayInputStream(properties.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    @FunctionalInterface
+    private interface Step {
+
+        CompletableFuture<?> apply(MailServer server, String id) throws Exception;
+    }
+
+    private record Phase(IntUnaryOperator index, Step step) {
+
+    }
+
+    private static BulkSummary run(
+        final MailServer server,
+        final GeneratedMailbox mailbox,
+        final Phase phase,
+        final Duration duration,
+        final int concurrency
+    ) throws InterruptedException {
+        try (server) {
+            return new BulkRunner(concurrency).run(ids(mailbox, duration, phase.index()), id -> phase.step().apply(server, id));
+        }
+    }
+
+    private static LinkedHashMap<String, Phase> phases(final GeneratedMailbox mailbox, final Executor executor) {
+        final var any         = IntUnaryOperator.identity();
+        final var attachments = (IntUnaryOperator) index -> index - index % ATTACHMENT_EVERY;
+
+        final var phases = new LinkedHashMap<String, Phase>();
+        phases.put("getMessages", new Phase(any, (server, id) -> {
+            // the page of messages received up to the given one
+            final var index = mailbox.index(id);
+            final var query = MessageQuery.select("subject", "from", "sentDateTime", "receivedDateTime", "isRead", "hasAttachments")
+                                          .filter("receivedDateTime ge " + mailbox.received(index + PAGE_SIZE - 1)
+                                                  + " and receivedDateTime le " + mailbox.received(index))
+                                          .orderBy("receivedDateTime desc")
+                                          .top(PAGE_SIZE);
+            return server.getMessagesAsync(ACCOUNT, query, Message.class);
+        }));
+        phases.put("getMessage", new Phase(any, (server, id) -> server.getMessageAsync(ACCOUNT, id)));
+        phases.put("getAttachments", new Phase(attachments, (server, id) -> server.getAttachmentsAsync(ACCOUNT, id)));
+        phases.put("toggleRead", new Phase(any, (server, id) -> server.toggleReadAsync(ACCOUNT, id, ThreadLocalRandom.current().nextBoolean())));
+        phases.put("batchToggleRead", new Phase(any, (server, id) -> {
+            final var first = mailbox.index(id);
+            final var ids   = new ArrayList<String>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                ids.add(mailbox.id((first + i) % mailbox.size()));
+            }
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return server.toggleRead(ACCOUNT, ids, ThreadLocalRandom.current().nextBoolean());
+                } catch (final Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }, executor);
+        }));
+        return phases;
+    }
+
+    // random messages until the time is up
+    private static Iterator<String> ids(final GeneratedMailbox mailbox, final Duration duration, final IntUnaryOperator index) {
+        final var deadline = System.nanoTime() + duration.toNanos();
+        return new Iterator<>() {
+
+            @Override
+            public boolean hasNext() {
+                return System.nanoTime() < deadline;
+            }
+
+            @Override
+            public String next() {
+                // leave room for a page or batch past the chosen message
+                return mailbox.id(index.applyAsInt(ThreadLocalRandom.current().nextInt(Math.max(1, mailbox.size() - PAGE_SIZE))));
+            }
+        };
+    }
+
+    private static void log(final String phase, final BulkSummary summary) {
+        LOG.info(
+            "{}: operations:{} failed:{} throughput:{}/s p50:{}ms p90:{}ms p99:{}ms max:{}ms",
+            phase,
+            summary.processed(),
+            summary.failed(),
+            String.format("%.0f", summary.throughput()),
+            millis(summary.p50()),
+            millis(summary.p90()),
+            millis(summary.p99()),
+            millis(summary.max())
+        );
+    }
+
+    private static String millis(final Duration duration) {
+        return String.format("%.2f", duration.toNanos() / 1e6);
+    }
+}
@@ -0,0 +1,565 @@
+package com.alphabrik.msal.stub;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stand-in for the Graph mail endpoints backed by a {@link GeneratedMailbox}, for load and latency tests of
+ * {@code MailServer} against millions of messages. Unlike {@link StubGraphServer} nothing is stored per message and
+ * responses are streamed, so a request costs the same whatever the size of the mailbox.
+ * <p>
+ * Every account maps to the same mailbox. Lists page with an index cursor in {@code $skiptoken} and support the
+ * filters and orders {@code MailServer} sends: {@code isRead eq}, {@code receivedDateTime ge/gt/le/lt} joined with
+ * {@code and}, and {@code receivedDateTime} ascending or descending. Single messages, attachments, MIME content,
+ * delta and {@code $batch} are served as well. {@link #latency} delays every request, {@link #throttle} and
+ * {@link #concurrencyLimit} answer {@code 429} like Graph does.
+ */
+public class LoadTestGraphServer implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoadTestGraphServer.class);
+
+    // Graph accepts the unquoted field names MailServer.toggleRead sends
+    private static final ObjectMapper MAPPER = new ObjectMapper().enable(JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES);
+
+    private static final int DEFAULT_PAGE_SIZE = 10;
+    private static final int MAX_PAGE_SIZE     = 1000;
+
+    // a page with a selective filter ends after this many indexes, with a nextLink to continue, as Graph does
+    private static final int MAX_SCAN = 100_000;
+
+    private static final Set<String> ALL_FIELDS = Set.of(
+        "subject", "bodyPreview", "internetMessageId", "from", "sentDateTime", "receivedDateTime", "isRead", "hasAttachments"
+    );
+
+    static {
+        // the JDK server writes headers and body separately, with Nagle the body waits for the delayed ACK
+        // of the client, 40 ms per response on Linux. Read once, when the first HttpServer of the JVM is created.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final GeneratedMailbox mailbox;
+    private final HttpServer       server;
+    private final ExecutorService  executor = Executors.newCachedThreadPool();
+
+    private final LongAdder     requests  = new LongAdder();
+    private final LongAdder     throttled = new LongAdder();
+    private final AtomicInteger inFlight  = new AtomicInteger();
+
+    private volatile long   latencyNanos;
+    private volatile long   jitterNanos;
+    private volatile double throttleProbability;
+    private volatile int    retryAfterSeconds = 1;
+    private volatile int    concurrencyLimit  = Integer.MAX_VALUE;
+
+    public LoadTestGraphServer(final int port, final GeneratedMailbox mailbox) throws IOException {
+        this.mailbox = mailbox;
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+    }
+
+    public LoadTestGraphServer start() {
+        server.start();
+        LOG.info("Load test Graph server with {} messages listening on {}", mailbox.size(), getBaseUrl());
+        return this;
+    }
+
+    public String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Delays every response by {@code base} plus a uniformly distributed share of {@code jitter}.
+     */
+    public LoadTestGraphServer latency(final Duration base, final Duration jitter) {
+        this.latencyNanos = base.toNanos();
+        this.jitterNanos = jitter.toNanos();
+        return this;
+    }
+
+    /**
+     * Answers the given share of requests with {@code 429 Too Many Requests} and a {@code Retry-After} header.
+     */
+    public LoadTestGraphServer throttle(final double probability, final int retryAfterSeconds) {
+        this.throttleProbability = probability;
+        this.retryAfterSeconds = retryAfterSeconds;
+        return this;
+    }
+
+    /**
+     * Answers {@code 429} while more than {@code limit} requests are in progress, like the MailboxConcurrency limit of Graph.
+     */
+    public LoadTestGraphServer concurrencyLimit(final int limit) {
+        this.concurrencyLimit = limit;
+        return this;
+    }
+
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    public long getThrottledCount() {
+        return throttled.sum();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        requests.increment();
+        final var concurrent = inFlight.incrementAndGet();
+        try (exchange) {
+            final var path   = exchange.getRequestURI().getPath().split("/");
+            final var query  = StubGraphServer.parseQuery(exchange.getRequestURI().getRawQuery());
+            final var method = exchange.getRequestMethod();
+            LOG.debug("{} {}", method, exchange.getRequestURI());
+
+            delay();
+            if (concurrent > concurrencyLimit
+                || throttleProbability > 0 && ThreadLocalRandom.current().nextDouble() < throttleProbability) {
+                throttled.increment();
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+                StubGraphServer.send(exchange, 429, StubGraphServer.error("TooManyRequests", "Application is over its MailboxConcurrency limit."));
+            } else if (path.length == 2 && "$batch".equals(path[1]) && "POST".equals(method)) {
+                batch(exchange);
+            } else if (path.length < 4 || !"users".equals(path[1])) {
+                notFound(exchange, "ResourceNotFound");
+            } else if (path.length == 4 && "messages".equals(path[3]) && "GET".equals(method)) {
+                listMessages(exchange, query);
+            } else if (path.length == 5 && "messages".equals(path[3])) {
+                handleMessage(exchange, method, mailbox.index(path[4]), query);
+            } else if (path.length == 6 && "messages".equals(path[3]) && "$value".equals(path[5])) {
+                messageValue(exchange, mailbox.index(path[4]));
+            } else if (path.length == 6 && "messages".equals(path[3]) && "attachments".equals(path[5])) {
+                listAttachments(exchange, mailbox.index(path[4]), query);
+            } else if (path.length == 8 && "attachments".equals(path[5]) && "$value".equals(path[7])) {
+                attachmentValue(exchange, mailbox.index(path[4]), path[6]);
+            } else if (path.length == 7 && "mailFolders".equals(path[3]) && "delta".equals(path[6])) {
+                delta(exchange, query);
+            } else {
+                notFound(exchange, "ResourceNotFound");
+            }
+        } catch (final Exception e) {
+            LOG.warn("Load test request failed", e);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void delay() throws InterruptedException {
+        final var nanos = latencyNanos + (jitterNanos > 0 ? ThreadLocalRandom.current().nextLong(jitterNanos) : 0);
+        if (nanos > 0) {
+            Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+        }
+    }
+
+    private void handleMessage(final HttpExchange exchange, final String method, final int index, final Map<String, String> query) throws IOException {
+        if (!mailbox.exists(index)) {
+            notFound(exchange, "ErrorItemNotFound");
+            return;
+        }
+        switch (method) {
+            case "GET" -> {
+                try (final var json = json(exchange, 200)) {
+                    writeMessage(json, index, select(query), false);
+                }
+            }
+            case "PATCH" -> {
+                final var isRead = MAPPER.readTree(exchange.getRequestBody()).path("isRead");
+                if (isRead.isBoolean()) {
+                    mailbox.markRead(index, isRead.asBoolean());
+                }
+                try (final var json = json(exchange, 200)) {
+                    writeMessage(json, index, ALL_FIELDS, false);
+                }
+            }
+            case "DELETE" -> {
+                mailbox.delete(index);
+                exchange.sendResponseHeaders(204, -1);
+            }
+            default -> StubGraphServer.send(exchange, 405, StubGraphServer.error("ErrorInvalidRequest", "Unsupported method " + method));
+        }
+    }
+
+    /**
+     * Newest first by default. The cursor is the next index to look at: ascending indexes for the default order,
+     * descending ones for {@code receivedDateTime asc}.
+     */
+    private void listMessages(final HttpExchange exchange, final Map<String, String> query) throws IOException {
+        final var bounds    = bounds(query.getOrDefault("$filter", ""));
+        final var top       = Math.min(MAX_PAGE_SIZE, Integer.parseInt(query.getOrDefault("$top", String.valueOf(DEFAULT_PAGE_SIZE))));
+        final var ascending = query.getOrDefault("$orderby", "").matches("receivedDateTime( asc)?");
+        final var select    = select(query);
+        final var expand    = "attachments".equals(query.get("$expand"));
+        final var step      = ascending ? -1 : 1;
+        var       cursor    = query.containsKey("$skiptoken")
+                              ? Integer.parseInt(query.get("$skiptoken"))
+                              : ascending ? bounds.to() - 1 : bounds.from();
+
+        try (final var json = json(exchange, 200)) {
+            json.writeStartObject();
+            json.writeArrayFieldStart("value");
+            var written = 0;
+            var scanned = 0;
+            while (written < top && scanned < MAX_SCAN && cursor >= bounds.from() && cursor < bounds.to()) {
+                if (mailbox.exists(cursor) && (bounds.isRead() == null || mailbox.isRead(cursor) == bounds.isRead())) {
+                    writeMessage(json, cursor, select, expand);
+                    written++;
+                }
+                cursor += step;
+                scanned++;
+            }
+            json.writeEndArray();
+            if (cursor >= bounds.from() && cursor < bounds.to()) {
+                json.writeStringField("@odata.nextLink", link(exchange, query, "$skiptoken", String.valueOf(cursor)));
+            }
+            json.writeEndObject();
+        }
+    }
+
+    private record Bounds(int from, int to, Boolean isRead) {
+
+    }
+
+    // index range and read state of the subset of OData filters MailServer sends, see StubGraphServer.filter
+    private Bounds bounds(final String expression) {
+        var     from   = 0;
+        var     to     = mailbox.size();
+        Boolean isRead = null;
+        for (final var clause : expression.isBlank() ? new String[0] : expression.split(" and ")) {
+            final var parts = clause.trim().split(" ");
+            if (parts.length == 3 && "isRead".equals(parts[0]) && "eq".equals(parts[1])) {
+                isRead = Boolean.parseBoolean(parts[2]);
+            } else if (parts.length == 3 && "receivedDateTime".equals(parts[0])) {
+                // index 0 is the newest, so a lower bound on the date is an upper bound on the index
+                final var bound = Instant.parse(parts[2]);
+                switch (parts[1]) {
+                    case "ge" -> to = Math.min(to, mailbox.firstBefore(bound));
+                    case "gt" -> to = Math.min(to, mailbox.firstNotAfter(bound));
+                    case "le" -> from = Math.max(from, mailbox.firstNotAfter(bound));
+                    case "lt" -> from = Math.max(from, mailbox.firstBefore(bound));
+                    default -> throw new IllegalArgumentException("Unsupported filter: " + clause);
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported filter: " + clause);
+            }
+        }
+        return new Bounds(from, to, isRead);
+    }
+
+    private static Set<String> select(final Map<String, String> query) {
+        return query.containsKey("$select") ? new HashSet<>(List.of(query.get("$select").split(","))) : ALL_FIELDS;
+    }
+
+    private void writeMessage(final JsonGenerator json, final int index, final Set<String> select, final boolean expand) throws IOException {
+        final var received = mailbox.received(index).toString();
+        json.writeStartObject();
+        json.writeStringField("id", mailbox.id(index));
+        if (select.contains("subject")) {
+            json.writeStringField("subject", mailbox.subject(index));
+        }
+        if (select.contains("bodyPreview")) {
+            json.writeStringField("bodyPreview", "Preview of " + mailbox.subject(index));
+        }
+        if (select.contains("internetMessageId")) {
+            json.writeStringField("internetMessageId", "<" + index + "@load.example.com>");
+        }
+        if (select.contains("from")) {
+            json.writeObjectFieldStart("from");
+            json.writeObjectFieldStart("emailAddress");
+            json.writeStringField("name", mailbox.senderName(index));
+            json.writeStringField("address", mailbox.sender(index));
+            json.writeEndObject();
+            json.writeEndObject();
+        }
+        if (select.contains("sentDateTime")) {
+            json.writeStringField("sentDateTime", received);
+        }
+        if (select.contains("receivedDateTime")) {
+            json.writeStringField("receivedDateTime", received);
+        }
+        if (select.contains("isRead")) {
+            json.writeBooleanField("isRead", mailbox.isRead(index));
+        }
+        if (select.contains("hasAttachments")) {
+            json.writeBooleanField("hasAttachments", mailbox.hasAttachment(index));
+        }
+        if (expand) {
+            json.writeArrayFieldStart("attachments");
+            if (mailbox.hasAttachment(index)) {
+                writeAttachment(json, index, null);
+            }
+            json.writeEndArray();
+        }
+        json.writeEndObject();
+    }
+
+    private void writeAttachment(final JsonGenerator json, final int index, final Set<String> select) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("@odata.type", "#microsoft.graph.fileAttachment");
+        json.writeStringField("id", attachmentId(index));
+        if (select == null || select.contains("lastModifiedDateTime")) {
+            json.writeStringField("lastModifiedDateTime", mailbox.received(index).toString());
+        }
+        if (select == null || select.contains("name")) {
+            json.writeStringField("name", "report-" + index + ".pdf");
+        }
+        if (select == null || select.contains("contentType")) {
+            json.writeStringField("contentType", "application/pdf");
+        }
+        if (select == null || select.contains("size")) {
+            json.writeNumberField("size", mailbox.attachmentSize());
+        }
+        if (select == null || select.contains("isInline")) {
+            json.writeBooleanField("isInline", false);
+        }
+        if (select == null || select.contains("contentBytes")) {
+            json.writeBinaryField("contentBytes", mailbox.attachment(index));
+        }
+        json.writeEndObject();
+    }
+
+    private static String attachmentId(final int index) {
+        return "attachment-" + index;
+    }
+
+    private void listAttachments(final HttpExchange exchange, final int index, final Map<String, String> query) throws IOException {
+        if (!mailbox.exists(index)) {
+            notFound(exchange, "ErrorItemNotFound");
+            return;
+        }
+        final var select = query.containsKey("$select") ? Set.of(query.get("$select").split(",")) : null;
+        try (final var json = json(exchange, 200)) {
+            json.writeStartObject();
+            json.writeArrayFieldStart("value");
+            if (mailbox.hasAttachment(index)) {
+                writeAttachment(json, index, select);
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+    }
+
+    private void attachmentValue(final HttpExchange exchange, final int index, final String attachmentId) throws IOException {
+        if (!mailbox.exists(index) || !mailbox.hasAttachment(index) || !attachmentId(index).equals(attachmentId)) {
+            notFound(exchange, "ErrorItemNotFound");
+            return;
+        }
+        final var bytes = mailbox.attachment(index);
+        exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+        exchange.sendResponseHeaders(200, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private void messageValue(final HttpExchange exchange, final int index) throws IOException {
+        if (!mailbox.exists(index)) {
+            notFound(exchange, "ErrorItemNotFound");
+            return;
+        }
+        final var boundary = "boundary-" + index;
+        final var mime     = new StringBuilder();
+        mime.append("From: ").append(mailbox.sender(index)).append("\r\n")
+            .append("Subject: ").append(mailbox.subject(index)).append("\r\n")
+            .append("Date: ").append(DateTimeFormatter.RFC_1123_DATE_TIME.format(mailbox.received(index).atOffset(ZoneOffset.UTC))).append("\r\n")
+            .append("Message-ID: <").append(index).append("@load.example.com>\r\n")
+            .append("MIME-Version: 1.0\r\n")
+            .append("Content-Type: multipart/mixed; boundary=\"").append(boundary).append("\"\r\n\r\n")
+            .append("--").append(boundary).append("\r\n")
+            .append("Content-Type: text/plain; charset=utf-8\r\n\r\n")
+            .append(mailbox.subject(index)).append("\r\n");
+        if (mailbox.hasAttachment(index)) {
+            mime.append("--").append(boundary).append("\r\n")
+                .append("Content-Type: application/pdf\r\n")
+                .append("Content-Disposition: attachment; filename=\"report-").append(index).append(".pdf\"\r\n")
+                .append("Content-Transfer-Encoding: base64\r\n\r\n")
+                .append(Base64.getMimeEncoder().encodeToString(mailbox.attachment(index))).append("\r\n");
+        }
+        mime.append("--").append(boundary).append("--\r\n");
+
+        final var bytes = mime.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "message/rfc822");
+        exchange.sendResponseHeaders(200, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    /**
+     * The first round lists every message, paged by index; its delta link holds the mailbox version it started at.
+     * Later rounds return the messages changed since, deleted ones as {@code @removed}. {@code $skiptoken} is
+     * {@code since.upTo.cursor}, with a cursor into the mailbox for the first round and into the changes otherwise.
+     */
+    private void delta(final HttpExchange exchange, final Map<String, String> query) throws IOException {
+        final long since;
+        final long upTo;
+        final int  cursor;
+        if (query.containsKey("$skiptoken")) {
+            final var parts = query.get("$skiptoken").split("\\.");
+            since = Long.parseLong(parts[0]);
+            upTo = Long.parseLong(parts[1]);
+            cursor = Integer.parseInt(parts[2]);
+        } else {
+            since = Long.parseLong(query.getOrDefault("$deltatoken", "-1"));
+            upTo = mailbox.version();
+            cursor = 0;
+        }
+        final var pageSize = pageSize(exchange);
+        final var select   = select(query);
+        final var base     = new LinkedHashMap<String, String>();
+        if (query.containsKey("$select")) {
+            base.put("$select", query.get("$select"));
+        }
+
+        try (final var json = json(exchange, 200)) {
+            json.writeStartObject();
+            json.writeArrayFieldStart("value");
+            var next = cursor;
+            if (since < 0) {
+                var written = 0;
+                while (written < pageSize && next < mailbox.size()) {
+                    if (mailbox.exists(next)) {
+                        writeMessage(json, next, select, false);
+                        written++;
+                    }
+                    next++;
+                }
+                next = next < mailbox.size() ? next : -1;
+            } else {
+                final var changed = mailbox.changedBetween(since, upTo);
+                for (; next < changed.length && next < cursor + pageSize; next++) {
+                    if (mailbox.exists(changed[next])) {
+                        writeMessage(json, changed[next], select, false);
+                    } else {
+                        json.writeStartObject();
+                        json.writeStringField("id", mailbox.id(changed[next]));
+                        json.writeObjectFieldStart("@removed");
+                        json.writeStringField("reason", "deleted");
+                        json.writeEndObject();
+                        json.writeEndObject();
+                    }
+                }
+                next = next < changed.length ? next : -1;
+            }
+            json.writeEndArray();
+            if (next >= 0) {
+                json.writeStringField("@odata.nextLink", link(exchange, base, "$skiptoken", since + "." + upTo + "." + next));
+            } else {
+                json.writeStringField("@odata.deltaLink", link(exchange, Map.of(), "$deltatoken", String.valueOf(upTo)));
+            }
+            json.writeEndObject();
+        }
+    }
+
+    // Prefer: odata.maxpagesize=n
+    private static int pageSize(final HttpExchange exchange) {
+        final var prefer = exchange.getRequestHeaders().getFirst("Prefer");
+        if (prefer != null && prefer.startsWith("odata.maxpagesize=")) {
+            return Math.min(MAX_PAGE_SIZE, Integer.parseInt(prefer.substring("odata.maxpagesize=".length()).trim()));
+        }
+        return DEFAULT_PAGE_SIZE;
+    }
+
+    private void batch(final HttpExchange exchange) throws IOException {
+        final var requests = MAPPER.readTree(exchange.getRequestBody()).path("requests");
+        try (final var json = json(exchange, 200)) {
+            json.writeStartObject();
+            json.writeArrayFieldStart("responses");
+            for (final var request : requests) {
+                final var path   = request.path("url").asText().split("/");
+                final var index  = path.length == 5 && "messages".equals(path[3]) ? mailbox.index(path[4]) : -1;
+                final var method = request.path("method").asText();
+                final var status = batchItem(method, index, request.path("body"));
+
+                json.writeStartObject();
+                json.writeStringField("id", request.path("id").asText());
+                json.writeNumberField("status", status);
+                if (status == 404) {
+                    json.writeObjectFieldStart("body");
+                    json.writeObjectFieldStart("error");
+                    json.writeStringField("code", "ErrorItemNotFound");
+                    json.writeStringField("message", "The specified object was not found in the store.");
+                    json.writeEndObject();
+                    json.writeEndObject();
+                } else if (status == 200) {
+                    json.writeFieldName("body");
+                    writeMessage(json, index, ALL_FIELDS, false);
+                }
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+    }
+
+    private int batchItem(final String method, final int index, final JsonNode body) {
+        if (!mailbox.exists(index)) {
+            return 404;
+        }
+        return switch (method) {
+            case "GET" -> 200;
+            case "PATCH" -> {
+                mailbox.markRead(index, body.path("isRead").asBoolean());
+                yield 200;
+            }
+            case "DELETE" -> mailbox.delete(index) ? 204 : 404;
+            default -> 405;
+        };
+    }
+
+    private static void notFound(final HttpExchange exchange, final String code) throws IOException {
+        StubGraphServer.send(exchange, 404, StubGraphServer.error(code, "The specified object was not found in the store."));
+    }
+
+    // chunked, so the body is written as it is generated
+    private static JsonGenerator json(final HttpExchange exchange, final int status) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, 0);
+        return MAPPER.getFactory().createGenerator(exchange.getResponseBody());
+    }
+
+    private String link(final HttpExchange exchange, final Map<String, String> query, final String option, final String value) {
+        final var link = new StringBuilder(getBaseUrl()).append(exchange.getRequestURI().getRawPath());
+        var       sep  = '?';
+        for (final var entry : query.entrySet()) {
+            if (!option.equals(entry.getKey())) {
+                link.append(sep).append(entry.getKey()).append('=').append(encode(entry.getValue()));
+                sep = '&';
+            }
+        }
+        return link.append(sep).append(option).append('=').append(encode(value)).toString();
+    }
+
+    private static String encode(final String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+}
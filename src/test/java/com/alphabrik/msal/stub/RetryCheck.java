@@ -0,0 +1,171 @@
+package com.alphabrik.msal.stub;
+
+import com.alphabrik.msal.Configuration;
+import com.alphabrik.msal.MailServer;
+import com.alphabrik.msal.model.BatchResult;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the retry handling of {@link MailServer} offline: against a {@link StubGraphServer} answering a share of
+ * requests with {@code 429}, every operation must still succeed; the sub-requests of a {@code $batch} throttled one by
+ * one must be sent again; against a server answering {@code 504}, reads are retried but a POST is sent only once, as
+ * Graph may have processed it. Throws on the first failed check.
+ * <pre>
+ * RetryCheck [throttleProbability]
+ * </pre>
+ */
+public class RetryCheck {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RetryCheck.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final int MESSAGES = 10;
+
+    public static void main(final String[] args) throws Exception {
+        final var probability = args.length > 0 ? Double.parseDouble(args[0]) : 0.3;
+        checkThrottled(probability);
+        checkThrottledBatchItems();
+        checkTimeouts();
+        LOG.info("Retry checks passed");
+    }
+
+    private static void checkThrottled(final double probability) throws Exception {
+        try (final var stub = new StubGraphServer(0).throttle(probability, 0).start()) {
+            final var ids = new ArrayList<String>();
+            for (int i = 0; i < MESSAGES; i++) {
+                ids.add(stub.addMessage("sender@example.com", "Message " + i));
+            }
+            try (final var server = new MailServer(configuration(stub.getBaseUrl(), 10))) {
+                try (final var messages = server.streamMessages(false, 5)) {
+                    check(messages.count() == MESSAGES, "all pages listed");
+                }
+                for (final var id : ids) {
+                    check(id.equals(server.getMessage(id).id()), "message " + id + " read");
+                    server.toggleRead(id, true);
+                }
+                // $batch is a POST, retried after 429 because Graph did not process it
+                final var results = server.toggleRead(ids, false);
+                check(results.stream().allMatch(BatchResult::isSuccess), "batch succeeded: " + results);
+                for (final var id : ids) {
+                    check(!server.getMessage(id).isRead(), "message " + id + " unread after batch");
+                }
+
+                final var stats = server.getThrottlingStats();
+                LOG.info("Throttled {}: {}", probability, stats);
+                check(probability == 0 || stats.throttled() > 0, "requests throttled");
+                check(stats.failed() == 0, "no request failed");
+            }
+        }
+    }
+
+    // the first $batch throttles every other sub-request, one of them with a malformed Retry-After
+    private static void checkThrottledBatchItems() throws Exception {
+        final var batches   = new AtomicInteger();
+        final var throttled = ConcurrentHashMap.<String>newKeySet();
+        final var server    = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            try (exchange) {
+                final var request   = MAPPER.readTree(exchange.getRequestBody());
+                final var response  = MAPPER.createObjectNode();
+                final var responses = response.putArray("responses");
+                final var first     = batches.getAndIncrement() == 0;
+                for (final var item : request.path("requests")) {
+                    final var answer = responses.addObject().put("id", item.path("id").asText());
+                    final var index  = item.path("id").asInt();
+                    if (first && index % 2 == 1) {
+                        throttled.add(item.path("url").asText());
+                        answer.put("status", 429)
+                              .putObject("headers")
+                              .put("Retry-After", index == 1 ? "soon" : "0");
+                        answer.set("body", StubGraphServer.error("TooManyRequests", "Too many requests"));
+                    } else {
+                        answer.put("status", 200);
+                    }
+                }
+                StubGraphServer.send(exchange, 200, response);
+            }
+        });
+        server.start();
+        try (final var mailServer = new MailServer(configuration("http://localhost:" + server.getAddress().getPort(), 2))) {
+            final var ids = new ArrayList<String>();
+            for (int i = 0; i < MESSAGES; i++) {
+                ids.add("message" + i);
+            }
+            final var results = mailServer.toggleRead(ids, true);
+            check(results.stream().allMatch(BatchResult::isSuccess), "throttled batch items retried: " + results);
+            check(results.stream().map(BatchResult::messageId).toList().equals(ids), "results in the order of the ids");
+            check(batches.get() == 2, "throttled items sent again in one batch, batches: " + batches.get());
+
+            final var stats = mailServer.getThrottlingStats();
+            LOG.info("Throttled batch items: {}", stats);
+            check(stats.throttled() == throttled.size() && stats.retried() == throttled.size(), "throttled items counted");
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static void checkTimeouts() throws Exception {
+        final var requests = new ConcurrentHashMap<String, AtomicInteger>();
+        final var timeouts = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        timeouts.createContext("/", exchange -> {
+            try (exchange) {
+                requests.computeIfAbsent(exchange.getRequestMethod(), method -> new AtomicInteger()).incrementAndGet();
+                exchange.getRequestBody().readAllBytes();
+                StubGraphServer.send(exchange, 504, StubGraphServer.error("GatewayTimeout", "The request timed out."));
+            }
+        });
+        timeouts.start();
+        try (final var server = new MailServer(configuration("http://localhost:" + timeouts.getAddress().getPort(), 2))) {
+            final var results = server.toggleRead(List.of("message"), true);
+            check(results.get(0).status() == 504, "batch answered 504: " + results);
+            check(count(requests, "POST") == 1, "POST sent once, not " + count(requests, "POST"));
+
+            try {
+                server.getMessage("message");
+                check(false, "GET failed");
+            } catch (final RuntimeException e) {
+                LOG.debug("Expected", e);
+            }
+            check(count(requests, "GET") == 3, "GET retried twice, sent " + count(requests, "GET") + " times");
+        } finally {
+            timeouts.stop(0);
+        }
+    }
+
+    private static Configuration configuration(final String baseUrl, final int maxRetries) {
+        final var properties = String.join(
+            "\n",
+            "access_token=retry-check",
+            "account=retry@example.com",
+            "baseUrl=" + baseUrl,
+            "maxRetries=" + maxRetries,
+            "maxRequestsPerSecond=1000",
+            "responseCacheEntries=0"
+        );
+        return new Configuration(new ByteArrayInputStream(properties.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    private static int count(final Map<String, AtomicInteger> requests, final String method) {
+        final var count = requests.get(method);
+        return count != null ? count.get() : 0;
+    }
+
+    private static void check(final boolean condition, final String description) {
+        if (!condition) {
+            throw new IllegalStateException("Check failed: " + description);
+        }
+    }
+}
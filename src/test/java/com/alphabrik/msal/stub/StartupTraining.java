@@ -0,0 +1,139 @@
+package com.alphabrik.msal.stub;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Writes the class data sharing archive of the {@code appcds} build profile. Common {@code MailExample} commands run
+ * against a {@link StubGraphServer}, each in a JVM with just the jar on the class path, their token coming from a
+ * token cache through msal4j as with {@code tokenCacheDir}. The classes they load become one static archive, so
+ * neither the stub nor this class has to be in the jar. Needs no network.
+ * <pre>
+ * StartupTraining &lt;jar&gt; &lt;archive&gt;
+ * </pre>
+ */
+public class StartupTraining {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StartupTraining.class);
+
+    private static final String CLIENT_ID = "00000000-0000-0000-0000-000000000001";
+    private static final String TENANT    = "00000000-0000-0000-0000-000000000002";
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 2) {
+            LOG.warn("Usage: StartupTraining <jar> <archive>");
+            System.exit(-1);
+        }
+        final var jar       = Path.of(args[0]).toAbsolutePath();
+        final var archive   = Path.of(args[1]).toAbsolutePath();
+        final var java      = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        final var directory = Files.createTempDirectory("startup-training");
+        try (final var stub = new StubGraphServer(0).start()) {
+            writeTokenCache(directory);
+            final var environment = Map.of(
+                "clientId", CLIENT_ID,
+                "clientSecret", "training",
+                "tenant", TENANT,
+                "authority", "https://login.microsoftonline.com",
+                "tokenCacheDir", directory.toString(),
+                "account", "training@example.com",
+                "baseUrl", stub.getBaseUrl()
+            );
+
+            final var first  = stub.addMessage("sender@example.com", "Training");
+            final var second = stub.addMessage("sender@example.com", "Training with attachment");
+            stub.addAttachment(second, "training.txt", "text/plain", "training".getBytes(StandardCharsets.UTF_8));
+
+            final var store    = directory.resolve("store").toString();
+            final var commands = List.of(
+                List.of("getMessages", "false"),
+                List.of("getAttachments", second),
+                List.of("toggleRead", first, "true"),
+                List.of("bulk", "unread", "query:all"),
+                List.of("sync", directory.resolve("delta.token").toString()),
+                List.of("indexSync", store),
+                List.of("indexQuery", store, "unread"),
+                List.of("delete", first)
+            );
+            // in the order loaded, a class comes after its super types in every run
+            final var classes = new LinkedHashSet<String>();
+            for (int i = 0; i < commands.size(); i++) {
+                final var classList = directory.resolve(i + ".classlist");
+                final var command   = new ArrayList<>(List.of(
+                    java,
+                    "-XX:DumpLoadedClassList=" + classList,
+                    "-Dorg.slf4j.simpleLogger.log.com.alphabrik=warn",
+                    "-cp",
+                    jar.toString(),
+                    "com.alphabrik.msal.MailExample"
+                ));
+                command.addAll(commands.get(i));
+                run(command, environment);
+                classes.addAll(Files.readAllLines(classList));
+            }
+
+            final var classList = directory.resolve("all.classlist");
+            Files.write(classList, classes);
+            run(List.of(
+                java,
+                "-Xshare:dump",
+                "-Xlog:cds=error",
+                "-XX:SharedClassListFile=" + classList,
+                "-XX:SharedArchiveFile=" + archive,
+                "-cp",
+                jar.toString()
+            ), Map.of());
+            LOG.info("Wrote {} classes of {} training runs to {}", classes.size(), commands.size(), archive);
+        } finally {
+            try (final Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    private static void run(final List<String> command, final Map<String, String> environment) throws Exception {
+        final var builder = new ProcessBuilder(command).inheritIO();
+        builder.environment().putAll(environment);
+        final var status = builder.start().waitFor();
+        if (status != 0) {
+            throw new IllegalStateException("Training run failed with " + status + ": " + command);
+        }
+    }
+
+    // msal4j's serialized cache with one Graph token valid for an hour, and the discovery metadata of AAD
+    private static void writeTokenCache(final Path directory) throws Exception {
+        final var now = Instant.now().getEpochSecond();
+        final var key = "-login.microsoftonline.com-accesstoken-" + CLIENT_ID + "-" + TENANT + "-https://graph.microsoft.com/.default";
+        Files.writeString(directory.resolve("token-cache.json"), "{\"AccessToken\":{\"" + key + "\":{"
+                                                                 + "\"home_account_id\":\"\","
+                                                                 + "\"environment\":\"login.microsoftonline.com\","
+                                                                 + "\"client_id\":\"" + CLIENT_ID + "\","
+                                                                 + "\"realm\":\"" + TENANT + "\","
+                                                                 + "\"credential_type\":\"AccessToken\","
+                                                                 + "\"secret\":\"training\","
+                                                                 + "\"target\":\"https://graph.microsoft.com/.default\","
+                                                                 + "\"cached_at\":\"" + now + "\","
+                                                                 + "\"expires_on\":\"" + (now + 3600) + "\","
+                                                                 + "\"extended_expires_on\":\"" + (now + 3600) + "\"}}}");
+        Files.writeString(directory.resolve("instance-discovery.json"), "{"
+                                                                        + "\"tenant_discovery_endpoint\":\"https://login.microsoftonline.com/" + TENANT
+                                                                        + "/v2.0/.well-known/openid-configuration\","
+                                                                        + "\"api-version\":\"1.1\","
+                                                                        + "\"metadata\":[{"
+                                                                        + "\"preferred_network\":\"login.microsoftonline.com\","
+                                                                        + "\"preferred_cache\":\"login.windows.net\","
+                                                                        + "\"aliases\":[\"login.microsoftonline.com\",\"login.windows.net\",\"login.microsoft.com\",\"sts.windows.net\"]"
+                                                                        + "}]}");
+    }
+}
@@ -0,0 +1,636 @@
+package com.alphabrik.msal.stub;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * Minimal in-memory stand-in for the Graph mail endpoints used by {@code MailServer},
+ * so the client can be exercised offline. Point {@code baseUrl} at {@link #getBaseUrl()}
+ * and set any {@code access_token}; the stub does not check it.
+ */
+public class StubGraphServer implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StubGraphServer.class);
+
+    // Graph accepts the unquoted field names MailServer.toggleRead sends
+    private static final ObjectMapper MAPPER = new ObjectMapper().enable(JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES);
+
+    private static final int DEFAULT_PAGE_SIZE = 10;
+
+    private final HttpServer      server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final HttpClient      client   = HttpClient.newHttpClient();
+
+    private final Map<String, ObjectNode>              messages      = new LinkedHashMap<>();
+    private final Map<String, Long>                    tombstones    = new HashMap<>();
+    private final Map<String, Map<String, ObjectNode>> attachments   = new HashMap<>();
+    private final Map<String, ObjectNode>              subscriptions = new LinkedHashMap<>();
+    private       long                                 version;
+
+    private volatile double throttleProbability;
+    private volatile int    retryAfterSeconds;
+
+    public StubGraphServer(final int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+    }
+
+    public StubGraphServer start() {
+        server.start();
+        LOG.info("Stub Graph server listening on {}", getBaseUrl());
+        return this;
+    }
+
+    public String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Answers the given share of requests with {@code 429 Too Many Requests} and a {@code Retry-After} header.
+     */
+    public StubGraphServer throttle(final double probability, final int retryAfterSeconds) {
+        this.throttleProbability = probability;
+        this.retryAfterSeconds = retryAfterSeconds;
+        return this;
+    }
+
+    public synchronized String addMessage(final String sender, final String subject) {
+        return addMessage(sender, subject, Instant.now());
+    }
+
+    public synchronized String addMessage(final String sender, final String subject, final Instant received) {
+        final var id  = UUID.randomUUID().toString();
+        final var now = received.toString();
+
+        final var message = MAPPER.createObjectNode();
+        message.put("id", id);
+        message.put("subject", subject);
+        message.put("bodyPreview", "Preview of " + subject);
+        message.put("internetMessageId", "<" + id + "@stub>");
+        message.putObject("from")
+               .putObject("emailAddress")
+               .put("name", sender)
+               .put("address", sender);
+        message.put("sentDateTime", now);
+        message.put("receivedDateTime", now);
+        message.put("isRead", false);
+        message.put("hasAttachments", false);
+        message.put("@version", ++version);
+        messages.put(id, message);
+        notifySubscribers("created", id);
+        return id;
+    }
+
+    public synchronized String addAttachment(final String messageId, final String name, final String contentType, final byte[] content) {
+        final var message = messages.get(messageId);
+        if (message == null) {
+            throw new IllegalArgumentException("Unknown message " + messageId);
+        }
+        final var id = UUID.randomUUID().toString();
+
+        final var attachment = MAPPER.createObjectNode();
+        attachment.put("@odata.type", "#microsoft.graph.fileAttachment");
+        attachment.put("id", id);
+        attachment.put("lastModifiedDateTime", Instant.now().toString());
+        attachment.put("name", name);
+        attachment.put("contentType", contentType);
+        attachment.put("size", content.length);
+        attachment.put("isInline", false);
+        attachment.put("contentBytes", Base64.getEncoder().encodeToString(content));
+        attachments.computeIfAbsent(messageId, key -> new LinkedHashMap<>()).put(id, attachment);
+        message.put("hasAttachments", true);
+        return id;
+    }
+
+    public synchronized boolean markRead(final String id, final boolean read) {
+        final var message = messages.get(id);
+        if (message == null) {
+            return false;
+        }
+        message.put("isRead", read);
+        message.put("@version", ++version);
+        notifySubscribers("updated", id);
+        return true;
+    }
+
+    public synchronized boolean removeMessage(final String id) {
+        if (messages.remove(id) == null) {
+            return false;
+        }
+        attachments.remove(id);
+        tombstones.put(id, ++version);
+        notifySubscribers("deleted", id);
+        return true;
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try (exchange) {
+            final var path     = exchange.getRequestURI().getPath().split("/");
+            final var query    = parseQuery(exchange.getRequestURI().getRawQuery());
+            final var method   = exchange.getRequestMethod();
+            LOG.debug("{} {}", method, exchange.getRequestURI());
+
+            // path: /users/{account}/messages[/{id}] or /users/{account}/mailFolders/{folder}/messages/delta
+            if (throttleProbability > 0 && ThreadLocalRandom.current().nextDouble() < throttleProbability) {
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+                send(exchange, 429, error("TooManyRequests", "Application is over its MailboxConcurrency limit."));
+            } else if (path.length == 2 && "$batch".equals(path[1]) && "POST".equals(method)) {
+                send(exchange, 200, batch(exchange));
+            } else if (path.length >= 2 && "subscriptions".equals(path[1])) {
+                handleSubscription(exchange, method, path.length > 2 ? path[2] : null);
+            } else if (path.length < 4 || !"users".equals(path[1])) {
+                send(exchange, 404, error("ResourceNotFound", "Unknown resource"));
+            } else if (path.length == 4 && "messages".equals(path[3]) && "GET".equals(method)) {
+                sendCacheable(exchange, listMessages(exchange, query));
+            } else if (path.length == 5 && "messages".equals(path[3])) {
+                handleMessage(exchange, method, path[4]);
+            } else if (path.length == 6 && "messages".equals(path[3]) && "$value".equals(path[5])) {
+                messageValue(exchange, path[4]);
+            } else if (path.length == 6 && "messages".equals(path[3]) && "attachments".equals(path[5])) {
+                sendCacheable(exchange, listAttachments(path[4], query));
+            } else if (path.length == 8 && "attachments".equals(path[5]) && "$value".equals(path[7])) {
+                attachmentValue(exchange, path[4], path[6]);
+            } else if (path.length == 7 && "mailFolders".equals(path[3]) && "delta".equals(path[6])) {
+                send(exchange, 200, delta(exchange, query));
+            } else {
+                send(exchange, 404, error("ResourceNotFound", "Unknown resource"));
+            }
+        } catch (final Exception e) {
+            LOG.warn("Stub request failed", e);
+            exchange.sendResponseHeaders(500, -1);
+        }
+    }
+
+    private void handleMessage(final HttpExchange exchange, final String method, final String id) throws IOException {
+        switch (method) {
+            case "GET" -> {
+                final ObjectNode message;
+                synchronized (this) {
+                    message = messages.containsKey(id) ? messages.get(id).deepCopy().without("@version") : null;
+                }
+                if (message != null) {
+                    final var query = parseQuery(exchange.getRequestURI().getRawQuery());
+                    if (query.containsKey("$select")) {
+                        final var select = new ArrayList<>(List.of(query.get("$select").split(",")));
+                        select.add("id");
+                        message.retain(select);
+                    }
+                    sendCacheable(exchange, message);
+                } else {
+                    send(exchange, 404, error("ErrorItemNotFound", "The specified object was not found in the store."));
+                }
+            }
+            case "PATCH" -> {
+                final var body = MAPPER.readTree(exchange.getRequestBody());
+                if (markRead(id, body.path("isRead").asBoolean())) {
+                    synchronized (this) {
+                        send(exchange, 200, messages.get(id).deepCopy().without("@version"));
+                    }
+                } else {
+                    send(exchange, 404, error("ErrorItemNotFound", "The specified object was not found in the store."));
+                }
+            }
+            case "DELETE" -> {
+                if (removeMessage(id)) {
+                    exchange.sendResponseHeaders(204, -1);
+                } else {
+                    send(exchange, 404, error("ErrorItemNotFound", "The specified object was not found in the store."));
+                }
+            }
+            default -> send(exchange, 405, error("MethodNotAllowed", method));
+        }
+    }
+
+    private void handleSubscription(final HttpExchange exchange, final String method, final String id) throws IOException {
+        if (id == null && "POST".equals(method)) {
+            final var subscription = (ObjectNode) MAPPER.readTree(exchange.getRequestBody());
+            // like Graph, only create the subscription once the endpoint echoes a validation token
+            final var token = UUID.randomUUID().toString();
+            if (!validate(subscription.path("notificationUrl").asText(), token)) {
+                send(exchange, 400, error("ValidationError", "Subscription validation request failed."));
+                return;
+            }
+            subscription.put("id", UUID.randomUUID().toString());
+            synchronized (this) {
+                subscriptions.put(subscription.get("id").asText(), subscription);
+            }
+            send(exchange, 201, subscription);
+            return;
+        }
+        final ObjectNode subscription;
+        synchronized (this) {
+            subscription = id != null ? subscriptions.get(id) : null;
+        }
+        if (subscription == null) {
+            send(exchange, 404, error("ResourceNotFound", "Unknown subscription"));
+            return;
+        }
+        switch (method) {
+            case "PATCH" -> {
+                final var body = MAPPER.readTree(exchange.getRequestBody());
+                synchronized (this) {
+                    subscription.set("expirationDateTime", body.get("expirationDateTime"));
+                    send(exchange, 200, subscription);
+                }
+            }
+            case "DELETE" -> {
+                synchronized (this) {
+                    subscriptions.remove(id);
+                }
+                exchange.sendResponseHeaders(204, -1);
+            }
+            default -> send(exchange, 405, error("MethodNotAllowed", method));
+        }
+    }
+
+    private boolean validate(final String notificationUrl, final String token) {
+        try {
+            final var request = HttpRequest.newBuilder()
+                                           .POST(HttpRequest.BodyPublishers.noBody())
+                                           .uri(URI.create(notificationUrl + "?validationToken=" + URLEncoder.encode(token, StandardCharsets.UTF_8)))
+                                           .timeout(Duration.ofSeconds(10))
+                                           .build();
+            final var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            return response.statusCode() == 200 && token.equals(response.body());
+        } catch (final Exception e) {
+            LOG.warn("Validation of {} failed", notificationUrl, e);
+            return false;
+        }
+    }
+
+    // posts the change to every subscription, asynchronously like Graph
+    private void notifySubscribers(final String changeType, final String messageId) {
+        for (final var subscription : subscriptions.values()) {
+            final var payload      = MAPPER.createObjectNode();
+            final var notification = payload.putArray("value").addObject();
+            notification.put("subscriptionId", subscription.path("id").asText());
+            notification.put("clientState", subscription.path("clientState").asText());
+            notification.put("changeType", changeType);
+            notification.put("resource", subscription.path("resource").asText() + "/" + messageId);
+            notification.putObject("resourceData")
+                        .put("@odata.type", "#Microsoft.Graph.Message")
+                        .put("id", messageId);
+            final var request = HttpRequest.newBuilder()
+                                           .POST(HttpRequest.BodyPublishers.ofString(payload.toString()))
+                                           .header("Content-Type", "application/json")
+                                           .uri(URI.create(subscription.path("notificationUrl").asText()))
+                                           .build();
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                  .whenComplete((response, error) -> {
+                      if (error != null || response.statusCode() >= 300) {
+                          LOG.warn("Notification to {} failed: {}", request.uri(), error != null ? error.toString() : response.statusCode());
+                      }
+                  });
+        }
+    }
+
+    private ObjectNode batch(final HttpExchange exchange) throws IOException {
+        final var requests = MAPPER.readTree(exchange.getRequestBody()).path("requests");
+
+        final var response  = MAPPER.createObjectNode();
+        final var responses = response.putArray("responses");
+        for (final var request : requests) {
+            final var path   = request.path("url").asText().split("/");
+            final var id     = path.length == 5 && "messages".equals(path[3]) ? path[4] : null;
+            final var found  = switch (request.path("method").asText()) {
+                case "PATCH" -> id != null && markRead(id, request.path("body").path("isRead").asBoolean());
+                case "DELETE" -> id != null && removeMessage(id);
+                default -> false;
+            };
+            final var status = !found ? 404 : "DELETE".equals(request.path("method").asText()) ? 204 : 200;
+
+            final var item = responses.addObject();
+            item.put("id", request.path("id").asText());
+            item.put("status", status);
+            if (!found) {
+                item.set("body", error("ErrorItemNotFound", "The specified object was not found in the store."));
+            }
+        }
+        return response;
+    }
+
+    private synchronized ObjectNode listMessages(final HttpExchange exchange, final Map<String, String> query) {
+        final var filter = filter(query.getOrDefault("$filter", "")).and(search(query.get("$search")));
+        final var top    = Integer.parseInt(query.getOrDefault("$top", String.valueOf(DEFAULT_PAGE_SIZE)));
+        final var skip   = Integer.parseInt(query.getOrDefault("$skip", "0"));
+        final var expand = "attachments".equals(query.get("$expand"));
+        final var select = query.containsKey("$select") ? new ArrayList<>(List.of(query.get("$select").split(","))) : null;
+        if (select != null) {
+            select.add("id");
+        }
+
+        // newest first unless ordered by receivedDateTime ascending
+        final var order = Comparator.comparing((ObjectNode message) -> message.path("receivedDateTime").asText());
+        final var matching = messages.values()
+                                     .stream()
+                                     .filter(filter)
+                                     .sorted(query.getOrDefault("$orderby", "").matches("receivedDateTime( asc)?") ? order : order.reversed())
+                                     .toList();
+
+        final var response = MAPPER.createObjectNode();
+        final var value    = response.putArray("value");
+        matching.stream()
+                .skip(skip)
+                .limit(top)
+                .forEach(message -> {
+                    final ObjectNode copy = message.deepCopy().without("@version");
+                    if (select != null) {
+                        copy.retain(select);
+                    }
+                    if (expand) {
+                        final var embedded = copy.putArray("attachments");
+                        attachments.getOrDefault(message.path("id").asText(), Map.of()).values().forEach(embedded::add);
+                    }
+                    value.add(copy);
+                });
+        if (skip + top < matching.size()) {
+            final var next = new LinkedHashMap<>(query);
+            next.put("$skip", String.valueOf(skip + top));
+            response.put("@odata.nextLink", link(exchange, next));
+        }
+        return response;
+    }
+
+    // the subset of OData filters MailServer sends: isRead eq false, receivedDateTime ge/lt, joined with and
+    private static Predicate<ObjectNode> filter(final String expression) {
+        Predicate<ObjectNode> filter = message -> true;
+        for (final var clause : expression.isBlank() ? new String[0] : expression.split(" and ")) {
+            final var parts = clause.trim().split(" ");
+            if (parts.length == 3 && "isRead".equals(parts[0]) && "eq".equals(parts[1])) {
+                final var read = Boolean.parseBoolean(parts[2]);
+                filter = filter.and(message -> message.path("isRead").asBoolean() == read);
+            } else if (parts.length == 3 && "receivedDateTime".equals(parts[0])) {
+                final var bound = Instant.parse(parts[2]);
+                final Predicate<Instant> test = switch (parts[1]) {
+                    case "ge" -> received -> !received.isBefore(bound);
+                    case "gt" -> received -> received.isAfter(bound);
+                    case "le" -> received -> !received.isAfter(bound);
+                    case "lt" -> received -> received.isBefore(bound);
+                    default -> throw new IllegalArgumentException("Unsupported filter: " + clause);
+                };
+                filter = filter.and(message -> test.test(Instant.parse(message.path("receivedDateTime").asText())));
+            } else {
+                throw new IllegalArgumentException("Unsupported filter: " + clause);
+            }
+        }
+        return filter;
+    }
+
+    // like Graph, a quoted term found in subject, body preview or sender
+    private static Predicate<ObjectNode> search(final String search) {
+        if (search == null) {
+            return message -> true;
+        }
+        final var term = search.replaceAll("^\"|\"$", "").toLowerCase(Locale.ROOT);
+        return message -> message.path("subject").asText().toLowerCase(Locale.ROOT).contains(term)
+                          || message.path("bodyPreview").asText().toLowerCase(Locale.ROOT).contains(term)
+                          || message.path("from").path("emailAddress").path("address").asText().toLowerCase(Locale.ROOT).contains(term);
+    }
+
+    private void messageValue(final HttpExchange exchange, final String messageId) throws IOException {
+        final ObjectNode message;
+        final List<ObjectNode> files;
+        synchronized (this) {
+            message = messages.get(messageId);
+            files = List.copyOf(attachments.getOrDefault(messageId, Map.of()).values());
+        }
+        if (message == null) {
+            send(exchange, 404, error("ErrorItemNotFound", "The specified object was not found in the store."));
+            return;
+        }
+        final var boundary = "boundary-" + messageId;
+        final var mime     = new StringBuilder();
+        mime.append("From: ").append(message.path("from").path("emailAddress").path("address").asText()).append("\r\n")
+            .append("Subject: ").append(message.path("subject").asText()).append("\r\n")
+            .append("Date: ").append(DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                Instant.parse(message.path("sentDateTime").asText()).atOffset(ZoneOffset.UTC))).append("\r\n")
+            .append("Message-ID: <").append(messageId).append("@stub>\r\n")
+            .append("MIME-Version: 1.0\r\n")
+            .append("Content-Type: multipart/mixed; boundary=\"").append(boundary).append("\"\r\n\r\n")
+            .append("--").append(boundary).append("\r\n")
+            .append("Content-Type: text/plain; charset=utf-8\r\n\r\n")
+            .append(message.path("subject").asText()).append("\r\n");
+        for (final var file : files) {
+            mime.append("--").append(boundary).append("\r\n")
+                .append("Content-Type: ").append(file.path("contentType").asText()).append("\r\n")
+                .append("Content-Disposition: attachment; filename=\"").append(file.path("name").asText()).append("\"\r\n")
+                .append("Content-Transfer-Encoding: base64\r\n\r\n")
+                .append(file.path("contentBytes").asText()).append("\r\n");
+        }
+        mime.append("--").append(boundary).append("--\r\n");
+
+        final var bytes = mime.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "message/rfc822");
+        exchange.sendResponseHeaders(200, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private synchronized ObjectNode listAttachments(final String messageId, final Map<String, String> query) {
+        final var select = query.containsKey("$select") ? List.of(query.get("$select").split(",")) : null;
+
+        final var response = MAPPER.createObjectNode();
+        final var value    = response.putArray("value");
+        attachments.getOrDefault(messageId, Map.of())
+                   .values()
+                   .forEach(attachment -> {
+                       final var copy = attachment.deepCopy();
+                       if (select != null) {
+                           copy.retain(select);
+                           copy.set("@odata.type", attachment.get("@odata.type"));
+                       }
+                       value.add(copy);
+                   });
+        return response;
+    }
+
+    private void attachmentValue(final HttpExchange exchange, final String messageId, final String attachmentId) throws IOException {
+        final ObjectNode attachment;
+        synchronized (this) {
+            attachment = attachments.getOrDefault(messageId, Map.of()).get(attachmentId);
+        }
+        if (attachment == null) {
+            send(exchange, 404, error("ErrorItemNotFound", "The specified object was not found in the store."));
+            return;
+        }
+        final var bytes = Base64.getDecoder().decode(attachment.path("contentBytes").asText());
+        exchange.getResponseHeaders().set("Content-Type", attachment.path("contentType").asText());
+        exchange.sendResponseHeaders(200, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private synchronized ObjectNode delta(final HttpExchange exchange, final Map<String, String> query) {
+        // $skiptoken encodes since.upTo.offset of a running round, $deltatoken the version of the last round
+        final long since;
+        final long upTo;
+        final int  offset;
+        if (query.containsKey("$skiptoken")) {
+            final var parts = query.get("$skiptoken").split("\\.");
+            since = Long.parseLong(parts[0]);
+            upTo = Long.parseLong(parts[1]);
+            offset = Integer.parseInt(parts[2]);
+        } else {
+            since = Long.parseLong(query.getOrDefault("$deltatoken", "0"));
+            upTo = version;
+            offset = 0;
+        }
+
+        final var changes = new ArrayList<ObjectNode>();
+        messages.values()
+                .stream()
+                .filter(message -> message.path("@version").asLong() > since && message.path("@version").asLong() <= upTo)
+                .forEach(message -> changes.add(message.deepCopy().without("@version")));
+        if (since > 0) {
+            tombstones.forEach((id, removedAt) -> {
+                if (removedAt > since && removedAt <= upTo) {
+                    final var removed = MAPPER.createObjectNode();
+                    removed.put("id", id);
+                    removed.putObject("@removed").put("reason", "deleted");
+                    changes.add(removed);
+                }
+            });
+        }
+
+        final var response = MAPPER.createObjectNode();
+        final var value    = response.putArray("value");
+        changes.stream()
+               .skip(offset)
+               .limit(DEFAULT_PAGE_SIZE)
+               .forEach(value::add);
+        if (offset + DEFAULT_PAGE_SIZE < changes.size()) {
+            response.put("@odata.nextLink", link(exchange, Map.of("$skiptoken", since + "." + upTo + "." + (offset + DEFAULT_PAGE_SIZE))));
+        } else {
+            response.put("@odata.deltaLink", link(exchange, Map.of("$deltatoken", String.valueOf(upTo))));
+        }
+        return response;
+    }
+
+    private String link(final HttpExchange exchange, final Map<String, String> query) {
+        final var link = new StringBuilder(getBaseUrl()).append(exchange.getRequestURI().getRawPath());
+        var       sep  = '?';
+        for (final var entry : query.entrySet()) {
+            link.append(sep)
+                .append(entry.getKey())
+                .append('=')
+                .append(URLEncoder.encode(entry.getValue(), StandardCharsets.UTF_8).replace("+", "%20"));
+            sep = '&';
+        }
+        return link.toString();
+    }
+
+    static Map<String, String> parseQuery(final String rawQuery) {
+        final var query = new LinkedHashMap<String, String>();
+        if (rawQuery != null) {
+            for (final var param : rawQuery.split("&")) {
+                final var idx = param.indexOf('=');
+                if (idx > 0) {
+                    query.put(
+                        URLDecoder.decode(param.substring(0, idx), StandardCharsets.UTF_8),
+                        URLDecoder.decode(param.substring(idx + 1), StandardCharsets.UTF_8)
+                    );
+                }
+            }
+        }
+        return query;
+    }
+
+    static ObjectNode error(final String code, final String message) {
+        final var response = MAPPER.createObjectNode();
+        response.putObject("error")
+                .put("code", code)
+                .put("message", message);
+        return response;
+    }
+
+    static void send(final HttpExchange exchange, final int status, final ObjectNode body) throws IOException {
+        final var bytes = MAPPER.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    // the ETag is derived from the response body, so any change of the listed items changes it
+    private static void sendCacheable(final HttpExchange exchange, final ObjectNode body) throws IOException {
+        final var bytes = MAPPER.writeValueAsBytes(body);
+        final var etag  = "W/\"" + Integer.toHexString(Arrays.hashCode(bytes)) + "\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final var port     = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        final var count    = args.length > 1 ? Integer.parseInt(args[1]) : 25;
+        final var throttle = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+
+        final var stub = new StubGraphServer(port).throttle(throttle, 1).start();
+        for (int i = 0; i < count; i++) {
+            stub.addMessage("sender" + (i % 5) + "@example.com", "Message " + i);
+        }
+
+        System.out.println("Commands: add <subject> | read <id> | unread <id> | delete <id> | quit");
+        final var in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String    line;
+        while ((line = in.readLine()) != null) {
+            final var cmd = line.trim().split("\\s+", 2);
+            switch (cmd[0]) {
+                case "add" -> System.out.println(stub.addMessage("stub@example.com", cmd.length > 1 ? cmd[1] : "New message"));
+                case "read" -> System.out.println(stub.markRead(cmd[1], true));
+                case "unread" -> System.out.println(stub.markRead(cmd[1], false));
+                case "delete" -> System.out.println(stub.removeMessage(cmd[1]));
+                case "quit" -> {
+                    stub.close();
+                    System.exit(0);
+                }
+                default -> System.out.println("Unknown command: " + cmd[0]);
+            }
+        }
+        stub.close();
+    }
+}